@@ -1,24 +1,489 @@
+import common.buffer.BufferPool;
+import common.buffer.PooledBuffer;
+import common.transfer.FileTransfer;
+
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
 interface FileCopyRunner{
-    void copyFile(File source, File target);
+    /**
+     * 复制文件; 出错时抛出异常而不是打印后继续, 否则基准测试会把失败的复制计入成绩
+     * @param source
+     * @param target
+     * @param bufferSize 每次读写的缓冲区大小, 不使用缓冲区的实现忽略它
+     * @throws IOException
+     */
+    void copyFile(File source, File target, int bufferSize) throws IOException;
+
+    /**
+     * @return 结果是否随缓冲区大小变化; 返回false的实现每种文件大小只测一次
+     */
+    default boolean usesBuffer(){
+        return true;
+    }
 }
+
+/**
+ * 文件复制的基准测试, 用来为聊天附件选择I/O方式
+ * 对每种页缓存状态、文件大小、复制方式和缓冲区大小: 先预热warmup次, 再测量iterations次(或直到用完seconds秒), 输出
+ *   ops/s   每秒完成的复制次数
+ *   MB/s    吞吐量, 1MB = 1024 * 1024字节
+ *   ±%      各样本平均耗时的95%置信区间半宽占平均值的比例, 过大时说明结果不稳定, 应增加测量次数
+ * 页缓存状态:
+ *   warm  源文件已经在页缓存中(预热时读过), 测的是内存拷贝和系统调用开销
+ *   cold  每次测量前写入/proc/sys/vm/drop_caches清空页缓存, 测的是真实的磁盘读; 需要root权限, 失败时跳过
+ * 每个组合第一次复制后校验目标文件的长度和CRC32, 结果不正确的复制方式标记为FAILED, 不输出成绩
+ * 按上一个文件大小的速度估计单次复制会超过opLimit秒的组合跳过; 磁盘空间不足以容纳源文件和目标文件的大小也会跳过
+ *
+ * 用法: java FileCopyDemo [--sizes 4K,64K,1M,16M,256M,1G,4G] [--buffers 1K,8K,64K,1M] [--runners name,...]
+ *                         [--cache warm,cold] [--warmup 2] [--iterations 5] [--seconds 10] [--opLimit 30]
+ *                         [--dir 临时目录] [--fsync true] [--threads CPU核数] [--inflight 4]
+ */
 public class FileCopyDemo {
 
-    private static final int ROUNDS = 5;
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+    private static final long GB = 1024 * MB;
+    //生成源文件时每次写入的大小
+    private static final int GENERATE_CHUNK = (int) MB;
+    //warm模式下每个样本的最短耗时, 以及一个样本最多包含的复制次数
+    private static final long MIN_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MAX_BATCH = 10000;
+    //t分布在95%置信度下的双侧临界值, 下标为自由度; 自由度超过30时使用正态分布的1.96
+    private static final double[] T_95 = {0, 12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
 
-    private static void benchmark(FileCopyRunner test, File source, File target){
-        long elapsed = 0L;
-        for(int i = 0; i < ROUNDS; i++){
-            long startTime = System.currentTimeMillis();
-            test.copyFile(source, target);
-            elapsed += System.currentTimeMillis();
-            target.delete();
+    enum Cache { WARM, COLD }
+
+    private long[] sizes = {4 * KB, 64 * KB, MB, 16 * MB, 256 * MB, GB, 4 * GB};
+    private int[] buffers = {(int) KB, (int) (8 * KB), (int) (64 * KB), (int) MB};
+    private List<String> runnerNames = new ArrayList<>();
+    private List<Cache> caches = new ArrayList<>();
+    private int warmup = 2;
+    private int iterations = 5;
+    private int seconds = 10;
+    private int opLimit = 30;
+    private File dir = new File(System.getProperty("java.io.tmpdir"));
+    //计时中是否包含把目标文件刷到磁盘的时间
+    private boolean fsync;
+    //parallelCopy使用的线程数
+    private int threads = Runtime.getRuntime().availableProcessors();
+    //asyncCopy同时在途的读写请求数(缓冲区数)
+    private int inflight = 4;
+
+    /**
+     * 一个组合的测量结果, 每次复制的耗时单独记录, 用于计算置信区间
+     */
+    static class Result {
+        final List<Long> nanos = new ArrayList<>();
+
+        void add(long elapsed){
+            nanos.add(elapsed);
+        }
+
+        double mean(){
+            long total = 0;
+            for(long n : nanos){
+                total += n;
+            }
+            return (double) total / nanos.size();
+        }
+
+        double stddev(){
+            int n = nanos.size();
+            if(n < 2){
+                return 0;
+            }
+            double mean = mean();
+            double sum = 0;
+            for(long x : nanos){
+                sum += (x - mean) * (x - mean);
+            }
+            return Math.sqrt(sum / (n - 1));
+        }
+
+        /**
+         * @return 95%置信区间的半宽与平均值之比, 只有一次测量时为NaN
+         */
+        double relativeError(){
+            int n = nanos.size();
+            if(n < 2){
+                return Double.NaN;
+            }
+            double t = n - 1 < T_95.length ? T_95[n - 1] : 1.96;
+            return t * stddev() / Math.sqrt(n) / mean();
+        }
+
+        double opsPerSecond(){
+            return 1e9 / mean();
+        }
+
+        double megabytesPerSecond(long size){
+            return size * 1e9 / mean() / MB;
+        }
+    }
+
+    /**
+     * 按窗口把源文件映射到内存(FileChannel.map), 再把映射的内容写入目标通道
+     * 读不经过用户态缓冲区, 缺页时由内核直接从页缓存映射; 每次只映射一个窗口, 超过2GB的文件也可以复制,
+     * 映射区域在GC时解除, 不会同时占用整个文件大小的地址空间以外的资源
+     * 目标文件不做映射: 写映射会先把每一页读进来再覆盖, 比直接write多一次缺页
+     */
+    static class MappedCopyRunner implements FileCopyRunner {
+        //每次映射的窗口大小
+        static final long WINDOW = 64 * MB;
+
+        @Override
+        public void copyFile(File source, File target, int bufferSize) throws IOException {
+            FileChannel fin = null;
+            FileChannel fout = null;
+            try {
+                fin = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                fout = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                long size = fin.size();
+                for(long position = 0; position < size; position += WINDOW){
+                    MappedByteBuffer window = fin.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+                    while (window.hasRemaining()){
+                        fout.write(window);
+                    }
+                }
+            } finally {
+                close(fin);
+                close(fout);
+            }
+        }
+
+        @Override
+        public boolean usesBuffer() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "mappedCopy";
         }
-        System.out.println(test + ":" + elapsed / ROUNDS);
     }
+
+    /**
+     * 把文件切成CHUNK大小的区间, 由线程池中的多个线程并发复制: 各线程用positional read/write(read(buffer, position))
+     * 共用同一对通道, 不需要同步文件位置; 区间按顺序动态领取, 快的线程多做一些
+     * 单线程复制大文件时受限于一个核的拷贝速度和每次只有一个I/O请求, 并发后NVMe可以同时处理多个请求
+     * 每个线程的缓冲区从BufferPool借用直接缓冲区, 大小为bufferSize
+     */
+    static class ParallelCopyRunner implements FileCopyRunner {
+        //每次领取的区间大小
+        static final long CHUNK = 8 * MB;
+
+        private final int threads;
+        private final ExecutorService executor;
+
+        ParallelCopyRunner(int threads){
+            this.threads = threads;
+            final AtomicInteger next = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "file-copy-" + next.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        @Override
+        public void copyFile(File source, File target, final int bufferSize) throws IOException {
+            FileChannel fin = null;
+            FileChannel fout = null;
+            try {
+                fin = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                fout = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                final FileChannel in = fin;
+                final FileChannel out = fout;
+                final long size = fin.size();
+                final AtomicLong nextChunk = new AtomicLong();
+                long chunks = (size + CHUNK - 1) / CHUNK;
+                int tasks = (int) Math.min(threads, chunks);
+                //只有一个区间时在调用线程中复制, 小文件不付出线程切换的代价
+                if(tasks <= 1){
+                    copyChunks(in, out, size, nextChunk, bufferSize);
+                    return;
+                }
+                List<Future<Void>> futures = new ArrayList<>();
+                for(int i = 0; i < tasks; i++){
+                    futures.add(executor.submit(() -> {
+                        copyChunks(in, out, size, nextChunk, bufferSize);
+                        return null;
+                    }));
+                }
+                await(futures);
+            } finally {
+                close(fin);
+                close(fout);
+            }
+        }
+
+        /**
+         * 等待所有任务结束; 任何一个失败时抛出它的异常, 并让其余任务尽快停止
+         */
+        private static void await(List<Future<Void>> futures) throws IOException {
+            IOException failure = null;
+            for(Future<Void> future : futures){
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if(failure == null){
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                        for(Future<Void> other : futures){
+                            other.cancel(true);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("并行复制被中断");
+                } catch (CancellationException e) {
+                    //被上面的cancel取消, 异常已经记录
+                }
+            }
+            if(failure != null){
+                throw failure;
+            }
+        }
+
+        /**
+         * 不断领取下一个区间并复制, 直到没有剩余的区间
+         */
+        private static void copyChunks(FileChannel in, FileChannel out, long size, AtomicLong nextChunk, int bufferSize) throws IOException {
+            PooledBuffer owner = BufferPool.DEFAULT.allocate(bufferSize);
+            try {
+                ByteBuffer buffer = owner.buffer();
+                long chunk;
+                while ((chunk = nextChunk.getAndIncrement()) * CHUNK < size){
+                    long position = chunk * CHUNK;
+                    long end = Math.min(size, position + CHUNK);
+                    while (position < end){
+                        buffer.clear();
+                        buffer.limit((int) Math.min(bufferSize, end - position));
+                        int n = in.read(buffer, position);
+                        if(n < 0){
+                            throw new EOFException("源文件在复制过程中变短: " + position);
+                        }
+                        buffer.flip();
+                        long writePosition = position;
+                        while (buffer.hasRemaining()){
+                            writePosition += out.write(buffer, writePosition);
+                        }
+                        position += n;
+                    }
+                }
+            } finally {
+                owner.release();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "parallelCopy";
+        }
+    }
+
+    /**
+     * 用AsynchronousFileChannel流水线复制: 从BufferPool借inflight个缓冲区, 每个缓冲区是一条独立的回调链
+     *   领取下一块 -> 异步读 -> 读完成后异步写同一位置 -> 写完成后领取下一块
+     * 各条链互不等待, 某些缓冲区在读的同时其他缓冲区在写, 同时在途的读写请求最多inflight个; 块大小为bufferSize
+     * 回调在通道的线程池中执行, 调用线程只等待所有链结束; 任何一次读写失败后其余链不再领取新块, 抛出第一个异常
+     */
+    static class AsyncCopyRunner implements FileCopyRunner {
+        private final int inflight;
+
+        AsyncCopyRunner(int inflight){
+            this.inflight = inflight;
+        }
+
+        @Override
+        public void copyFile(File source, File target, int bufferSize) throws IOException {
+            AsynchronousFileChannel fin = null;
+            AsynchronousFileChannel fout = null;
+            try {
+                fin = AsynchronousFileChannel.open(source.toPath(), StandardOpenOption.READ);
+                fout = AsynchronousFileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                long size = fin.size();
+                int chains = (int) Math.min(inflight, (size + bufferSize - 1) / bufferSize);
+                if(chains == 0){
+                    return;
+                }
+                Copy copy = new Copy(fin, fout, size, bufferSize, chains);
+                for(int i = 0; i < chains; i++){
+                    new Chain(copy, BufferPool.DEFAULT.allocate(bufferSize)).next();
+                }
+                copy.await();
+            } finally {
+                close(fin);
+                close(fout);
+            }
+        }
+
+        /**
+         * 一次复制中各条链共享的状态
+         */
+        private static final class Copy {
+            final AsynchronousFileChannel in;
+            final AsynchronousFileChannel out;
+            final long size;
+            final int blockSize;
+            //下一个未被领取的块的起始位置
+            final AtomicLong nextPosition = new AtomicLong();
+            //第一个失败的异常, 设置后各条链不再领取新块
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            //尚未结束的链数
+            final CountDownLatch running;
+
+            Copy(AsynchronousFileChannel in, AsynchronousFileChannel out, long size, int blockSize, int chains){
+                this.in = in;
+                this.out = out;
+                this.size = size;
+                this.blockSize = blockSize;
+                this.running = new CountDownLatch(chains);
+            }
+
+            void await() throws IOException {
+                try {
+                    running.await();
+                } catch (InterruptedException e) {
+                    //关闭通道后在途的读写会以AsynchronousCloseException结束, 缓冲区由各条链归还
+                    failure.compareAndSet(null, e);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("异步复制被中断");
+                }
+                Throwable cause = failure.get();
+                if(cause instanceof IOException){
+                    throw (IOException) cause;
+                }
+                if(cause != null){
+                    throw new IOException(cause);
+                }
+            }
+        }
+
+        /**
+         * 一个缓冲区上的读写回调链; 同一时刻只有一个读或写在途, 所以不需要同步
+         */
+        private static final class Chain {
+            final Copy copy;
+            final PooledBuffer owner;
+            final ByteBuffer buffer;
+            //当前块中下一个要读的位置和块的结束位置
+            long position;
+            long end;
+            //当前缓冲区中的数据应写入的位置
+            long writePosition;
+
+            Chain(Copy copy, PooledBuffer owner){
+                this.copy = copy;
+                this.owner = owner;
+                this.buffer = owner.buffer();
+            }
+
+            /**
+             * 当前块读写完成后领取下一块; 没有剩余的块或已经失败时结束本链
+             */
+            void next(){
+                if(copy.failure.get() == null){
+                    position = copy.nextPosition.getAndAdd(copy.blockSize);
+                    if(position < copy.size){
+                        end = Math.min(copy.size, position + copy.blockSize);
+                        read();
+                        return;
+                    }
+                }
+                owner.release();
+                copy.running.countDown();
+            }
+
+            void read(){
+                buffer.clear();
+                buffer.limit((int) (end - position));
+                copy.in.read(buffer, position, this, READ);
+            }
+
+            void write(){
+                copy.out.write(buffer, writePosition, this, WRITE);
+            }
+
+            void failed(Throwable e){
+                copy.failure.compareAndSet(null, e);
+                owner.release();
+                copy.running.countDown();
+            }
+        }
+
+        private static final CompletionHandler<Integer, Chain> READ = new CompletionHandler<Integer, Chain>() {
+            @Override
+            public void completed(Integer n, Chain chain) {
+                if(n < 0){
+                    failed(new EOFException("源文件在复制过程中变短: " + chain.position), chain);
+                    return;
+                }
+                chain.buffer.flip();
+                chain.writePosition = chain.position;
+                chain.position += n;
+                chain.write();
+            }
+
+            @Override
+            public void failed(Throwable e, Chain chain) {
+                chain.failed(e);
+            }
+        };
+
+        private static final CompletionHandler<Integer, Chain> WRITE = new CompletionHandler<Integer, Chain>() {
+            @Override
+            public void completed(Integer n, Chain chain) {
+                chain.writePosition += n;
+                if(chain.buffer.hasRemaining()){
+                    //只写了一部分, 继续写剩下的
+                    chain.write();
+                } else if(chain.position < chain.end){
+                    //读到的不足一块, 继续读本块剩下的部分
+                    chain.read();
+                } else {
+                    chain.next();
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Chain chain) {
+                chain.failed(e);
+            }
+        };
+
+        @Override
+        public String toString() {
+            return "asyncCopy";
+        }
+    }
+
     private static void close(Closeable closeable){
         if(closeable != null){
             try{
@@ -29,10 +494,18 @@ public class FileCopyDemo {
         }
     }
 
-    public static void main(String[] args){
-        FileCopyRunner noBufferStreamCopy = new FileCopyRunner() {
+    /**
+     * 所有参与对比的复制方式
+     * @param threads parallelCopy使用的线程数
+     * @param inflight asyncCopy同时在途的读写请求数
+     * @return
+     */
+    static List<FileCopyRunner> runners(int threads, int inflight){
+        List<FileCopyRunner> runners = new ArrayList<>();
+        //每个字节一次read/write系统调用, 只能用于很小的文件
+        runners.add(new FileCopyRunner() {
             @Override
-            public void copyFile(File source, File target) {
+            public void copyFile(File source, File target, int bufferSize) throws IOException {
                 InputStream fin = null;
                 OutputStream fout = null;
                 try {
@@ -44,43 +517,39 @@ public class FileCopyDemo {
                     while ((result = fin.read()) != -1) {
                         fout.write(result);
                     }
-
-                } catch (FileNotFoundException e){
-                    e.printStackTrace();
-                } catch (IOException e){
-                    e.printStackTrace();
                 } finally {
                     close(fin);
                     close(fout);
                 }
             }
 
+            @Override
+            public boolean usesBuffer() {
+                return false;
+            }
+
             @Override
             public String toString() {
                 return "noBufferStreamCopy";
             }
-        };
-        FileCopyRunner bufferedStreamCopy = new FileCopyRunner() {
+        });
+        runners.add(new FileCopyRunner() {
             @Override
-            public void copyFile(File source, File target) {
+            public void copyFile(File source, File target, int bufferSize) throws IOException {
                 InputStream fin = null;
                 OutputStream fout = null;
                 try{
-                    fin = new BufferedInputStream(new FileInputStream(source));
-                    fout = new BufferedOutputStream(new FileOutputStream(target));
+                    fin = new BufferedInputStream(new FileInputStream(source), bufferSize);
+                    fout = new BufferedOutputStream(new FileOutputStream(target), bufferSize);
 
                     //缓冲区大小
-                    byte[] buffer = new byte[1024];
+                    byte[] buffer = new byte[bufferSize];
 
                     int result;
                     //read每次读一个buffer中字节数, 返回值是此次在buffer中所读字节的数量, 如果已经到达文件底返回-1
                     while ((result = fin.read(buffer)) != -1){
                         fout.write(buffer, 0, result);
                     }
-                } catch (FileNotFoundException e){
-                    e.printStackTrace();
-                } catch (IOException e){
-                    e.printStackTrace();
                 } finally {
                     close(fin);
                     close(fout);
@@ -91,11 +560,11 @@ public class FileCopyDemo {
             public String toString() {
                 return "bufferedStreamCopy";
             }
-        };
+        });
         //非直接缓冲区
-        FileCopyRunner nioBufferCopy = new FileCopyRunner() {
+        runners.add(new FileCopyRunner() {
             @Override
-            public void copyFile(File source, File target) {
+            public void copyFile(File source, File target, int bufferSize) throws IOException {
                 FileChannel fin = null;
                 FileChannel fout = null;
 
@@ -103,7 +572,7 @@ public class FileCopyDemo {
                     fin = new FileInputStream(source).getChannel();
                     fout = new FileOutputStream(target).getChannel();
 
-                    ByteBuffer buffer = ByteBuffer.allocate(1024);
+                    ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
                     while (fin.read(buffer) != -1){
                         //read -> write
                         buffer.flip();
@@ -114,11 +583,6 @@ public class FileCopyDemo {
                         //write -> read
                         buffer.clear();
                     }
-
-                } catch (FileNotFoundException e){
-                    e.printStackTrace();
-                } catch (IOException e){
-                    e.printStackTrace();
                 } finally{
                     close(fin);
                     close(fout);
@@ -129,37 +593,347 @@ public class FileCopyDemo {
             public String toString() {
                 return "nioBufferCopy";
             }
-        };
-        //通道之间的数据传输(直接缓冲区的模式)
-        FileCopyRunner nioTransferCopy = new FileCopyRunner() {
+        });
+        //通道之间的数据传输(直接缓冲区的模式), 由FileTransfer分块调用transferTo并按实际传输的字节数前进
+        runners.add(new FileCopyRunner() {
             @Override
-            public void copyFile(File source, File target) {
-                FileChannel fin = null;
-                FileChannel fout = null;
-                try{
-                    fin = new FileInputStream(source).getChannel();
-                    fout = new FileOutputStream(target).getChannel();
-
-                    long transferred = 0L;
-                    long size = fin.size();
-                    while (transferred != size){
-                        transferred += fin.transferTo(0, size, fout);
-                    }
+            public void copyFile(File source, File target, int bufferSize) throws IOException {
+                FileTransfer.copy(source, target, null);
+            }
 
-                } catch (FileNotFoundException e){
-                    e.printStackTrace();
-                } catch (IOException e){
-                    e.printStackTrace();
-                } finally {
-                    close(fin);
-                    close(fout);
-                }
+            @Override
+            public boolean usesBuffer() {
+                return false;
             }
 
             @Override
             public String toString() {
                 return "nioTransferCopy";
             }
-        };
+        });
+        runners.add(new MappedCopyRunner());
+        runners.add(new ParallelCopyRunner(threads));
+        runners.add(new AsyncCopyRunner(inflight));
+        return runners;
+    }
+
+    /**
+     * 生成指定大小的源文件, 内容为伪随机数据(避免全零文件被文件系统特殊处理), 并刷到磁盘
+     * @param file
+     * @param size
+     * @return 文件内容的CRC32, 用于校验复制结果
+     * @throws IOException
+     */
+    private static long generate(File file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] chunk = new byte[GENERATE_CHUNK];
+        CRC32 crc = new CRC32();
+        FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            long remaining = size;
+            while (remaining > 0){
+                int n = (int) Math.min(chunk.length, remaining);
+                random.nextBytes(chunk);
+                crc.update(chunk, 0, n);
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, n);
+                while (buffer.hasRemaining()){
+                    out.write(buffer);
+                }
+                remaining -= n;
+            }
+            //脏页写回磁盘后cold模式才能真正清空页缓存
+            out.force(true);
+        } finally {
+            close(out);
+        }
+        return crc.getValue();
+    }
+
+    private static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[GENERATE_CHUNK];
+        InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1){
+                crc.update(buffer, 0, n);
+            }
+        } finally {
+            close(in);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * 把脏页写回磁盘并清空页缓存, 只在Linux上以root运行时有效
+     * @return 是否成功
+     */
+    private static boolean dropCaches(){
+        try {
+            new ProcessBuilder("sync").inheritIO().start().waitFor();
+            Writer writer = new FileWriter("/proc/sys/vm/drop_caches");
+            try {
+                writer.write("3");
+            } finally {
+                close(writer);
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 复制一次并计时; fsync时把目标文件刷到磁盘的时间也计算在内
+     * @return 耗时(纳秒)
+     */
+    private long copyOnce(FileCopyRunner runner, File source, File target, int bufferSize) throws IOException {
+        long start = System.nanoTime();
+        runner.copyFile(source, target, bufferSize);
+        if(fsync){
+            FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.WRITE);
+            try {
+                channel.force(true);
+            } finally {
+                close(channel);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * 测量一个组合: 第一次复制校验结果, 预热后再测量
+     * warm模式下小文件的一次复制只有几十微秒, 每个样本连续复制多次(总耗时不少于MIN_SAMPLE_NANOS)取平均, 计时误差和抖动才不会淹没结果
+     * cold模式下每次复制前都要清空页缓存, 每个样本只复制一次
+     * @return 复制结果不正确时返回null
+     */
+    private Result benchmark(FileCopyRunner runner, Cache cache, File source, long size, long crc,
+                             File target, int bufferSize) throws IOException {
+        long warmupNanos = 0;
+        int warmups = Math.max(1, warmup);
+        for(int i = 0; i < warmups; i++){
+            warmupNanos += copyOnce(runner, source, target, bufferSize);
+            if(i == 0 && (target.length() != size || checksum(target) != crc)){
+                target.delete();
+                return null;
+            }
+            target.delete();
+        }
+        int batch = 1;
+        if(cache == Cache.WARM){
+            batch = (int) Math.max(1, Math.min(MAX_BATCH, MIN_SAMPLE_NANOS / Math.max(1, warmupNanos / warmups)));
+        }
+        Result result = new Result();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        for(int i = 0; i < iterations; i++){
+            long elapsed = 0;
+            for(int j = 0; j < batch; j++){
+                if(cache == Cache.COLD){
+                    dropCaches();
+                }
+                //删除目标文件不计入耗时
+                elapsed += copyOnce(runner, source, target, bufferSize);
+                target.delete();
+            }
+            result.add(elapsed / batch);
+            //大文件每次复制都很慢, 至少测两次以便估计误差, 之后用完时间预算就停止
+            if(i >= 1 && System.nanoTime() > deadline){
+                break;
+            }
+        }
+        return result;
+    }
+
+    private void run() throws IOException {
+        List<FileCopyRunner> runners = new ArrayList<>();
+        for(FileCopyRunner runner : runners(threads, inflight)){
+            if(runnerNames.isEmpty() || runnerNames.contains(runner.toString())){
+                runners.add(runner);
+            }
+        }
+        List<String> rows = new ArrayList<>();
+        for(Cache cache : caches){
+            if(cache == Cache.COLD && !dropCaches()){
+                System.out.println("无法写入/proc/sys/vm/drop_caches(需要Linux和root权限), 跳过cold测试");
+                continue;
+            }
+            //每个组合在上一个文件大小上每字节的平均耗时, 用来估计更大的文件是否会超过opLimit
+            Map<String, Double> nanosPerByte = new HashMap<>();
+            for(long size : sizes){
+                if(dir.getUsableSpace() < size * 2 + 64 * MB){
+                    rows.add(String.format("%-5s %6s 磁盘空间不足, 跳过", cache, human(size)));
+                    continue;
+                }
+                File source = new File(dir, "filecopy-source-" + size + ".bin");
+                File target = new File(dir, "filecopy-target-" + size + ".bin");
+                try {
+                    long crc = generate(source, size);
+                    for(FileCopyRunner runner : runners){
+                        int[] bufferSizes = runner.usesBuffer() ? buffers : new int[]{buffers[0]};
+                        for(int bufferSize : bufferSizes){
+                            String key = runner + "/" + bufferSize;
+                            Double rate = nanosPerByte.get(key);
+                            if(rate != null && rate * size > TimeUnit.SECONDS.toNanos(opLimit)){
+                                continue;
+                            }
+                            String buffer = runner.usesBuffer() ? human(bufferSize) : "-";
+                            System.out.printf("%s size=%s %s buffer=%s%n", cache, human(size), runner, buffer);
+                            String row;
+                            try {
+                                Result result = benchmark(runner, cache, source, size, crc, target, bufferSize);
+                                if(result == null){
+                                    row = String.format("%-5s %6s %-20s %7s FAILED: 目标文件与源文件不一致",
+                                            cache, human(size), runner, buffer);
+                                } else {
+                                    row = String.format("%-5s %6s %-20s %7s %12.1f %10.1f %7.1f",
+                                            cache, human(size), runner, buffer, result.opsPerSecond(),
+                                            result.megabytesPerSecond(size), result.relativeError() * 100);
+                                    nanosPerByte.put(key, result.mean() / size);
+                                }
+                            } catch (IOException e) {
+                                row = String.format("%-5s %6s %-20s %7s FAILED: %s", cache, human(size), runner, buffer, e);
+                            } finally {
+                                target.delete();
+                            }
+                            System.out.println(row);
+                            rows.add(row);
+                        }
+                    }
+                } finally {
+                    source.delete();
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-5s %6s %-20s %7s %12s %10s %7s%n", "cache", "size", "runner", "buffer", "ops/s", "MB/s", "±%");
+        for(String row : rows){
+            System.out.println(row);
+        }
+    }
+
+    private static String human(long bytes){
+        if(bytes >= GB && bytes % GB == 0){
+            return bytes / GB + "G";
+        }
+        if(bytes >= MB && bytes % MB == 0){
+            return bytes / MB + "M";
+        }
+        if(bytes >= KB && bytes % KB == 0){
+            return bytes / KB + "K";
+        }
+        return String.valueOf(bytes);
+    }
+
+    /**
+     * 解析4K、16M、1G这样的大小
+     */
+    private static long parseSize(String value){
+        String s = value.trim().toUpperCase();
+        long unit = 1;
+        switch (s.charAt(s.length() - 1)){
+            case 'K':
+                unit = KB;
+                break;
+            case 'M':
+                unit = MB;
+                break;
+            case 'G':
+                unit = GB;
+                break;
+            default:
+        }
+        if(unit != 1){
+            s = s.substring(0, s.length() - 1);
+        }
+        return Long.parseLong(s) * unit;
+    }
+
+    private void parse(String[] args){
+        for(int i = 0; i + 1 < args.length; i += 2){
+            String value = args[i + 1];
+            String[] items = value.split(",");
+            switch (args[i]){
+                case "--sizes":
+                    sizes = new long[items.length];
+                    for(int j = 0; j < items.length; j++){
+                        sizes[j] = parseSize(items[j]);
+                    }
+                    break;
+                case "--buffers":
+                    buffers = new int[items.length];
+                    for(int j = 0; j < items.length; j++){
+                        buffers[j] = (int) parseSize(items[j]);
+                    }
+                    break;
+                case "--runners":
+                    for(String name : items){
+                        runnerNames.add(name.trim());
+                    }
+                    break;
+                case "--cache":
+                    for(String name : items){
+                        caches.add(Cache.valueOf(name.trim().toUpperCase()));
+                    }
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(value);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(value);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(value);
+                    break;
+                case "--opLimit":
+                    opLimit = Integer.parseInt(value);
+                    break;
+                case "--dir":
+                    dir = new File(value);
+                    break;
+                case "--fsync":
+                    fsync = Boolean.parseBoolean(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--inflight":
+                    inflight = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option: " + args[i]);
+            }
+        }
+        if(caches.isEmpty()){
+            caches.add(Cache.WARM);
+            caches.add(Cache.COLD);
+        }
+        if(threads < 1){
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        if(inflight < 1){
+            throw new IllegalArgumentException("inflight must be positive: " + inflight);
+        }
+        if(iterations < 1){
+            throw new IllegalArgumentException("iterations must be positive: " + iterations);
+        }
+        for(int bufferSize : buffers){
+            if(bufferSize < 1){
+                throw new IllegalArgumentException("buffer size must be positive: " + bufferSize);
+            }
+        }
+        if(!dir.isDirectory()){
+            throw new IllegalArgumentException("not a directory: " + dir);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        FileCopyDemo demo = new FileCopyDemo();
+        demo.parse(args);
+        demo.run();
     }
 }
@@ -0,0 +1,480 @@
+package bench;
+
+import common.codec.FrameCodec;
+import common.codec.FrameDecoder;
+import common.codec.FrameHandler;
+import common.log.AsyncLogger;
+import common.metrics.LatencyHistogram;
+import server.core.ChatPipeline;
+import server.core.ChatTransport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * bio/nio/aio三种聊天服务器的对比基准: 在同一进程中启动服务器, 通过回环地址连接一个聊天室
+ * 一个连接持续发送消息, 其余room-1个连接接收转发, 测量:
+ *   msgs/s       服务器接收并完成扇出的消息数
+ *   deliveries/s 接收者实际收到的消息数(约等于msgs/s * (room - 1))
+ *   p50/p99/p999 从发送者写出到接收者解码出该帧的端到端延迟
+ * 消息负载的前8个字节是发送时的System.nanoTime(), 发送者与接收者在同一进程中, 时钟一致
+ * 发送端最多允许window条消息尚未扇出完成, 避免把待发送队列撑满后测到的只是排队时间
+ *
+ * 每组参数都启动一个新的服务器实例, 先预热warmup轮再测量measure轮, 每轮seconds秒
+ * 用法: java bench.ChatServerBenchmark [--transports bio,nio,aio] [--rooms 2,16,128] [--sizes 64,1024]
+ *                                      [--warmup 2] [--measure 3] [--seconds 2] [--window 64]
+ */
+public class ChatServerBenchmark {
+    private static final String HOST = "localhost";
+    //超过该时间没有任何一条消息完成扇出, 认为该服务器无法支撑这个聊天室规模
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int TIMESTAMP = 8;
+
+    enum Transport { BIO, NIO, AIO }
+
+    private List<Transport> transports = new ArrayList<>();
+    private int[] rooms = {2, 16, 128};
+    private int[] sizes = {64, 1024};
+    private int warmup = 2;
+    private int measure = 3;
+    private int seconds = 2;
+    private int window = 64;
+
+    /**
+     * 一轮测量的结果
+     */
+    static class Result {
+        long messages;
+        long deliveries;
+        long nanos;
+        LatencyHistogram latency = new LatencyHistogram();
+
+        double messagesPerSecond(){
+            return messages * 1e9 / nanos;
+        }
+
+        double deliveriesPerSecond(){
+            return deliveries * 1e9 / nanos;
+        }
+
+        void add(Result other){
+            messages += other.messages;
+            deliveries += other.deliveries;
+            nanos += other.nanos;
+            latency.add(other.latency);
+        }
+    }
+
+    /**
+     * 聊天室规模无法在限定时间内完成扇出
+     */
+    static class StallException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        StallException(String message){
+            super(message);
+        }
+    }
+
+    /**
+     * 在后台线程中运行的服务器: bio/nio的start()会阻塞调用线程, aio在start()之后用await()等待
+     */
+    private static class RunningServer {
+        private final Transport transport;
+        private final int port;
+        //三种传输层都通过ChatTransport启动, 使用同一套ChatPipeline语义
+        private final ChatTransport instance;
+        private final Thread thread;
+
+        RunningServer(Transport transport, int port){
+            this.transport = transport;
+            this.port = port;
+            switch (transport){
+                case BIO:
+                    instance = new server.bio.ChatServer(port);
+                    break;
+                case NIO:
+                    instance = new server.nio.ChatServer(port);
+                    break;
+                default:
+                    instance = new server.aio.ChatServer(port);
+            }
+            thread = new Thread(() -> {
+                try {
+                    instance.serve(new ChatPipeline());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "bench-" + instance.name() + "-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            instance.stop();
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    /**
+     * 一个聊天室: 1个发送连接(阻塞模式)和room-1个接收连接(非阻塞, 由同一个selector线程读取)
+     */
+    private static class Room implements Runnable {
+        private final int messageSize;
+        private final int receivers;
+        private final SocketChannel sender;
+        private final List<SocketChannel> members = new ArrayList<>();
+        private final Selector selector;
+        private final ByteBuffer frame;
+        private final Thread thread;
+        private volatile boolean closed;
+
+        //以下计数只由接收线程写入
+        private volatile long deliveries;
+        //收到过至少一条消息的接收连接数
+        private volatile int joined;
+        //接收线程记录延迟, 主线程在一轮结束时取走, 以histogram本身作为锁
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private volatile boolean recording;
+
+        private long sent;
+
+        Room(int port, int size, int messageSize) throws IOException {
+            this.messageSize = messageSize;
+            this.receivers = size - 1;
+            this.selector = Selector.open();
+            this.sender = SocketChannel.open(new InetSocketAddress(HOST, port));
+            sender.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            for(int i = 0; i < receivers; i++){
+                SocketChannel member = SocketChannel.open(new InetSocketAddress(HOST, port));
+                member.configureBlocking(false);
+                member.register(selector, SelectionKey.OP_READ, new Receiver());
+                members.add(member);
+            }
+            //帧头只写一次, 每条消息只改写负载开头的时间戳
+            frame = ByteBuffer.allocateDirect(FrameCodec.HEADER_LENGTH + messageSize);
+            FrameCodec.writeHeader(frame, FrameCodec.TEXT, messageSize);
+            while (frame.hasRemaining()){
+                frame.put((byte) 'x');
+            }
+            thread = new Thread(this, "bench-receiver");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * 每个接收连接有独立的解码器
+         */
+        private class Receiver implements FrameHandler {
+            private final FrameDecoder decoder = new FrameDecoder();
+            private boolean seen;
+
+            @Override
+            public void onFrame(byte type, ByteBuffer payload) {
+                //转发的负载 = 发送者前缀 + 原始消息, 时间戳位于原始消息开头
+                int offset = payload.limit() - messageSize;
+                if(offset < payload.position()){
+                    return;
+                }
+                long latencyNanos = System.nanoTime() - payload.getLong(offset);
+                if(!seen){
+                    seen = true;
+                    joined++;
+                }
+                deliveries++;
+                if(recording){
+                    synchronized (latency){
+                        latency.record(latencyNanos);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            try {
+                while (!closed){
+                    selector.select(100);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()){
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        buffer.clear();
+                        int n = ((SocketChannel) key.channel()).read(buffer);
+                        if(n < 0){
+                            key.cancel();
+                            continue;
+                        }
+                        buffer.flip();
+                        ((Receiver) key.attachment()).decoder.decode(buffer, (Receiver) key.attachment());
+                    }
+                }
+            } catch (IOException e) {
+                if(!closed){
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void send() throws IOException {
+            frame.putLong(FrameCodec.HEADER_LENGTH, System.nanoTime());
+            frame.clear();
+            while (frame.hasRemaining()){
+                sender.write(frame);
+            }
+            sent++;
+        }
+
+        /**
+         * 服务器注册连接可能是异步的(nio交给worker, aio在回调中), 持续发送探测消息直到每个接收者都收到过消息,
+         * 再等到没有消息在途, 之后的计数才是准确的
+         */
+        void awaitJoined() throws IOException, StallException {
+            long deadline = System.nanoTime() + STALL_NANOS;
+            while (joined < receivers){
+                if(System.nanoTime() > deadline){
+                    throw new StallException(joined + "/" + receivers + "个接收者收到消息");
+                }
+                send();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+            awaitQuiet();
+        }
+
+        private void awaitQuiet() throws StallException {
+            long deadline = System.nanoTime() + STALL_NANOS;
+            long last = -1;
+            while (deliveries != last){
+                if(System.nanoTime() > deadline){
+                    throw new StallException("在途消息无法收完");
+                }
+                last = deliveries;
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(200));
+            }
+        }
+
+        /**
+         * 发送nanos纳秒, 最多window条消息没有扇出完成
+         */
+        Result run(long nanos, int window, boolean record) throws IOException, StallException {
+            synchronized (latency){
+                latency.reset();
+            }
+            recording = record;
+            long sentBase = sent;
+            long deliveredBase = deliveries;
+            long start = System.nanoTime();
+            long end = start + nanos;
+            long lastProgress = start;
+            long lastDelivered = deliveredBase;
+            long now;
+            while ((now = System.nanoTime()) < end){
+                long delivered = deliveries;
+                if(delivered != lastDelivered){
+                    lastDelivered = delivered;
+                    lastProgress = now;
+                } else if(now - lastProgress > STALL_NANOS){
+                    throw new StallException("超过" + TimeUnit.NANOSECONDS.toSeconds(STALL_NANOS) + "秒没有消息完成扇出");
+                }
+                long completed = (delivered - deliveredBase) / receivers;
+                if(sent - sentBase - completed < window){
+                    send();
+                } else {
+                    LockSupport.parkNanos(1000);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            recording = false;
+            Result result = new Result();
+            result.nanos = elapsed;
+            result.deliveries = deliveries - deliveredBase;
+            result.messages = result.deliveries / receivers;
+            synchronized (latency){
+                result.latency.add(latency);
+            }
+            //等待本轮的在途消息收完, 不计入下一轮
+            awaitQuiet();
+            return result;
+        }
+
+        void close(){
+            closed = true;
+            selector.wakeup();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            close(sender);
+            for(SocketChannel member : members){
+                close(member);
+            }
+            close(selector);
+        }
+
+        private static void close(java.io.Closeable closeable){
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                //忽略
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)){
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + STALL_NANOS;
+        while (true){
+            try {
+                SocketChannel.open(new InetSocketAddress(HOST, port)).close();
+                return;
+            } catch (IOException e){
+                if(System.nanoTime() > deadline){
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private Result trial(Transport transport, int roomSize, int messageSize) throws Exception {
+        int port = freePort();
+        RunningServer server = new RunningServer(transport, port);
+        Room room = null;
+        try {
+            awaitListening(port);
+            room = new Room(port, roomSize, messageSize);
+            room.awaitJoined();
+            long nanos = TimeUnit.SECONDS.toNanos(seconds);
+            for(int i = 0; i < warmup; i++){
+                Result r = room.run(nanos, window, false);
+                System.out.printf("  预热 %d: %,.0f msgs/s%n", i + 1, r.messagesPerSecond());
+            }
+            Result total = new Result();
+            for(int i = 0; i < measure; i++){
+                Result r = room.run(nanos, window, true);
+                System.out.printf("  测量 %d: %,.0f msgs/s, %,.0f deliveries/s, p99=%.1fus%n",
+                        i + 1, r.messagesPerSecond(), r.deliveriesPerSecond(), r.latency.percentile(99) / 1000.0);
+                total.add(r);
+            }
+            return total;
+        } finally {
+            if(room != null){
+                room.close();
+            }
+            server.stop();
+        }
+    }
+
+    private void run() throws Exception {
+        List<String> rows = new ArrayList<>();
+        for(int roomSize : rooms){
+            for(int messageSize : sizes){
+                for(Transport transport : transports){
+                    System.out.printf("%s room=%d size=%d%n", transport, roomSize, messageSize);
+                    String row;
+                    try {
+                        Result r = trial(transport, roomSize, messageSize);
+                        row = String.format("%-4s %6d %7d %14.0f %14.0f %10.1f %10.1f %10.1f",
+                                transport, roomSize, messageSize, r.messagesPerSecond(), r.deliveriesPerSecond(),
+                                r.latency.percentile(50) / 1000.0, r.latency.percentile(99) / 1000.0,
+                                r.latency.percentile(99.9) / 1000.0);
+                    } catch (StallException e) {
+                        row = String.format("%-4s %6d %7d 无法完成: %s", transport, roomSize, messageSize, e.getMessage());
+                    }
+                    System.out.println(row);
+                    rows.add(row);
+                }
+            }
+        }
+        System.out.println();
+        System.out.printf("%-4s %6s %7s %14s %14s %10s %10s %10s%n",
+                "", "room", "size", "msgs/s", "deliveries/s", "p50(us)", "p99(us)", "p999(us)");
+        for(String row : rows){
+            System.out.println(row);
+        }
+    }
+
+    private static int[] ints(String value){
+        String[] parts = value.split(",");
+        int[] result = new int[parts.length];
+        for(int i = 0; i < parts.length; i++){
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+
+    private void parse(String[] args){
+        for(int i = 0; i + 1 < args.length; i += 2){
+            String value = args[i + 1];
+            switch (args[i]){
+                case "--transports":
+                    for(String name : value.split(",")){
+                        transports.add(Transport.valueOf(name.trim().toUpperCase()));
+                    }
+                    break;
+                case "--rooms":
+                    rooms = ints(value);
+                    break;
+                case "--sizes":
+                    sizes = ints(value);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(value);
+                    break;
+                case "--measure":
+                    measure = Integer.parseInt(value);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(value);
+                    break;
+                case "--window":
+                    window = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option: " + args[i]);
+            }
+        }
+        if(transports.isEmpty()){
+            for(Transport transport : Transport.values()){
+                transports.add(transport);
+            }
+        }
+        for(int roomSize : rooms){
+            if(roomSize < 2){
+                throw new IllegalArgumentException("room size must be at least 2: " + roomSize);
+            }
+        }
+        for(int messageSize : sizes){
+            if(messageSize < TIMESTAMP){
+                throw new IllegalArgumentException("message size must be at least " + TIMESTAMP + ": " + messageSize);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        //逐条消息的日志会成为瓶颈, 基准测试中只保留警告
+        AsyncLogger.get().setLevel(AsyncLogger.Level.WARN);
+        ChatServerBenchmark benchmark = new ChatServerBenchmark();
+        benchmark.parse(args);
+        benchmark.run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,291 @@
+package client.aio;
+
+import common.buffer.OutboundQueue;
+import common.buffer.PooledBuffer;
+import common.codec.FrameCodec;
+import common.codec.FrameDecoder;
+import common.codec.FrameHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个完全基于回调的聊天会话: connect/read/write都是异步操作, 完成后在ClientGroup的线程上回调, 不占用线程
+ * 发送的消息进入会话自己的待发送队列, 同一时间最多一个写操作, 写完成后把期间入队的消息用一次gathering write发出
+ * 连接、读、写的回调对象所有会话共用, 每个会话只有自身的状态
+ * 任何线程调用close()都只关闭通道, onClosed()由随之失败的连接或读回调发出, 因此不会与onMessage()并发
+ */
+public class ChatSession implements FrameHandler {
+    private static final int BUFFER = 4096;
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    private static final ConnectHandler CONNECT_HANDLER = new ConnectHandler();
+    private static final ReadHandler READ_HANDLER = new ReadHandler();
+    private static final WriteHandler WRITE_HANDLER = new WriteHandler();
+
+    private final ClientGroup group;
+    private final AsynchronousSocketChannel channel;
+    private final SessionListener listener;
+    //服务器转发的消息按帧切分, 残缺的帧保留到下一次read
+    private final FrameDecoder decoder = new FrameDecoder();
+    //待发送队列, 调用send()的线程和写完成回调都会访问, 以队列本身作为锁
+    private final OutboundQueue outbound;
+    //连接建立后才分配, 关闭时归还
+    private PooledBuffer readBuffer;
+    //以下状态由outbound的锁保护
+    private boolean connected;
+    private boolean writing;
+    //close()之后不再接受新消息, 已排队的写完再断开
+    private boolean closing;
+    private boolean closed;
+    //close()时给出的原因, 读回调发出onClosed()时使用
+    private Throwable closeCause;
+    //使用者附加在会话上的数据, 例如机器人的状态
+    private volatile Object attachment;
+
+    ChatSession(ClientGroup group, AsynchronousSocketChannel channel, SessionListener listener){
+        this.group = group;
+        this.channel = channel;
+        this.listener = listener;
+        this.outbound = new OutboundQueue(group.maxOutboundBytes());
+    }
+
+    void connect(InetSocketAddress address){
+        channel.connect(address, this, CONNECT_HANDLER);
+    }
+
+    /**
+     * 发送一条文本消息, 不阻塞
+     * @param text
+     * @return 会话已关闭或待发送队列已满时返回false
+     */
+    public boolean send(String text){
+        if(text.isEmpty()){
+            return true;
+        }
+        return send(FrameCodec.encode(group.pool(), FrameCodec.TEXT, text));
+    }
+
+    /**
+     * 发送一条消息, payload按原始字节发送, 不改变它的position
+     * @param payload
+     * @return 会话已关闭或待发送队列已满时返回false
+     */
+    public boolean send(ByteBuffer payload){
+        return send(FrameCodec.encode(group.pool(), FrameCodec.TEXT, NO_PREFIX, payload));
+    }
+
+    private boolean send(PooledBuffer frame){
+        synchronized (outbound){
+            if(!closing && outbound.offer(frame.buffer(), frame)){
+                //连接建立前入队的消息在连接建立后一起发出
+                if(connected && !writing){
+                    writing = true;
+                    writeBatch();
+                }
+                return true;
+            }
+        }
+        frame.release();
+        return false;
+    }
+
+    /**
+     * 调用时必须持有outbound的锁
+     */
+    private void writeBatch(){
+        int n = outbound.gather();
+        channel.write(outbound.batch(), 0, n, 0L, TimeUnit.MILLISECONDS, this, WRITE_HANDLER);
+    }
+
+    /**
+     * 关闭会话: 不再接受新消息, 已排队的消息写完后断开连接
+     */
+    public void close(){
+        boolean now;
+        synchronized (outbound){
+            closing = true;
+            now = !writing;
+        }
+        if(now){
+            close(null);
+        }
+    }
+
+    /**
+     * 立即断开, 丢弃未发送的消息; 可以在任意线程调用
+     * 只关闭通道, 未完成的连接或读操作随之失败, 由它们的回调调用closed()
+     * @param cause 正常关闭时为null
+     */
+    private void close(Throwable cause){
+        synchronized (outbound){
+            if(closed){
+                return;
+            }
+            closed = true;
+            closing = true;
+            closeCause = cause;
+            //有写操作未完成时缓冲区可能仍在被使用, 由写完成回调负责清空
+            if(!writing){
+                outbound.clear();
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //忽略
+        }
+    }
+
+    /**
+     * 只在连接失败或读回调中不再发起下一次读时调用, 每个会话恰好一次: 关闭通道并通知listener
+     * @param cause 先前close()已经给出原因时使用先前的原因
+     */
+    private void closed(Throwable cause){
+        close(cause);
+        Throwable reported;
+        synchronized (outbound){
+            reported = closeCause;
+        }
+        group.sessionClosed();
+        listener.onClosed(this, reported);
+    }
+
+    public boolean isOpen(){
+        synchronized (outbound){
+            return !closing;
+        }
+    }
+
+    public Object attachment(){
+        return attachment;
+    }
+
+    public void attach(Object attachment){
+        this.attachment = attachment;
+    }
+
+    @Override
+    public void onFrame(byte type, ByteBuffer payload) {
+        if(type == FrameCodec.TEXT){
+            listener.onMessage(this, payload);
+        }
+    }
+
+    private static class ConnectHandler implements CompletionHandler<Void, ChatSession> {
+
+        @Override
+        public void completed(Void result, ChatSession session) {
+            session.readBuffer = session.group.pool().allocate(BUFFER);
+            ByteBuffer buffer = session.readBuffer.buffer();
+            session.listener.onConnected(session);
+            synchronized (session.outbound){
+                session.connected = true;
+                if(!session.outbound.isEmpty() && !session.writing){
+                    session.writing = true;
+                    session.writeBatch();
+                }
+            }
+            session.channel.read(buffer, session, READ_HANDLER);
+        }
+
+        @Override
+        public void failed(Throwable exc, ChatSession session) {
+            boolean closing;
+            synchronized (session.outbound){
+                closing = session.closing;
+            }
+            //连接过程中调用了close()
+            session.closed(closing ? null : exc);
+        }
+    }
+
+    private static class ReadHandler implements CompletionHandler<Integer, ChatSession> {
+
+        @Override
+        public void completed(Integer result, ChatSession session) {
+            ByteBuffer buffer = session.readBuffer.buffer();
+            if(result < 0){
+                //服务器断开
+                session.release();
+                session.closed(null);
+                return;
+            }
+            buffer.flip();
+            try {
+                session.decoder.decode(buffer, session);
+            } catch (IOException e) {
+                //帧格式错误, 无法继续解析
+                session.release();
+                session.closed(e);
+                return;
+            }
+            buffer.clear();
+            session.channel.read(buffer, session, this);
+        }
+
+        @Override
+        public void failed(Throwable exc, ChatSession session) {
+            session.release();
+            boolean closing;
+            synchronized (session.outbound){
+                closing = session.closing;
+            }
+            //主动关闭时未完成的读操作会失败, 不是异常
+            session.closed(closing ? null : exc);
+        }
+    }
+
+    /**
+     * 归还读缓冲区和残缺帧, 只在读回调中调用, 此时没有未完成的读操作
+     */
+    private void release(){
+        if(readBuffer != null){
+            readBuffer.release();
+            readBuffer = null;
+        }
+        decoder.reset();
+    }
+
+    /**
+     * gathering write的完成回调: 移除已写完的帧, 队列中还有数据就继续发起下一次写
+     */
+    private static class WriteHandler implements CompletionHandler<Long, ChatSession> {
+
+        @Override
+        public void completed(Long written, ChatSession session) {
+            boolean finished = false;
+            synchronized (session.outbound){
+                session.outbound.consumed(written);
+                if(session.closed){
+                    session.outbound.clear();
+                    session.writing = false;
+                } else if(!session.outbound.isEmpty()){
+                    session.writeBatch();
+                } else {
+                    session.writing = false;
+                    //close()时还有未写完的消息, 现在写完了
+                    finished = session.closing;
+                }
+            }
+            if(finished){
+                session.close(null);
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, ChatSession session) {
+            synchronized (session.outbound){
+                session.writing = false;
+                if(session.closed){
+                    session.outbound.clear();
+                }
+            }
+            session.close(exc);
+        }
+    }
+}
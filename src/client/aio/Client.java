@@ -1,13 +1,21 @@
 package client.aio;
 
-import sun.management.snmp.jvmmib.JVM_MANAGEMENT_MIBOidTable;
+import common.buffer.BufferPool;
+import common.buffer.PooledBuffer;
+import common.metrics.LatencyHistogram;
+import server.aio.Server;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class Client {
 
@@ -63,7 +71,198 @@ public class Client {
         }
     }
 
-    public static void main(String[] args) {
+    /**
+     * 回显基准测试: connections个连接各自进行"写size字节 -> 读回size字节"的往返, 一次只有一个请求在途
+     * 每个连接的回调串行执行, 各自记录往返延迟, 结束时合并; 数据放在复用的直接缓冲区中, 往返过程中不分配对象
+     * 用法: java client.aio.Client --bench [--host 127.0.0.1] [--port 8888] [--connections 16] [--size 64]
+     *                                      [--warmup 3] [--seconds 10] [--threads 4] [--embedded]
+     * --embedded在同一进程中启动server.aio.Server
+     */
+    static class EchoBenchmark {
+        private String host = "127.0.0.1";
+        private int port = 8888;
+        private int connections = 16;
+        private int size = 64;
+        private int warmup = 3;
+        private int seconds = 10;
+        private int threads = 4;
+        private boolean embedded;
+
+        private volatile boolean running = true;
+        //预热结束后才记录
+        private volatile boolean recording;
+
+        /**
+         * 一个连接: 同一时间只有一个往返在进行, 读写回调共用这个对象
+         */
+        private class Pinger implements CompletionHandler<Integer, Object> {
+            private final AsynchronousSocketChannel channel;
+            private final PooledBuffer out;
+            private final PooledBuffer in;
+            private final LatencyHistogram latency = new LatencyHistogram();
+            private long ops;
+            private long start;
+            private boolean writing;
+            private final CountDownLatch done;
+
+            Pinger(AsynchronousSocketChannel channel, CountDownLatch done){
+                this.channel = channel;
+                this.done = done;
+                this.out = BufferPool.DEFAULT.allocate(size);
+                this.in = BufferPool.DEFAULT.allocate(size);
+            }
+
+            void ping(){
+                if(!running){
+                    finish();
+                    return;
+                }
+                ByteBuffer buffer = out.buffer();
+                buffer.clear();
+                start = System.nanoTime();
+                writing = true;
+                channel.write(buffer, null, this);
+            }
+
+            @Override
+            public void completed(Integer result, Object attachment) {
+                if(result < 0){
+                    failed(new EOFException(), attachment);
+                    return;
+                }
+                if(writing){
+                    ByteBuffer buffer = out.buffer();
+                    if(buffer.hasRemaining()){
+                        channel.write(buffer, null, this);
+                        return;
+                    }
+                    writing = false;
+                    in.buffer().clear();
+                    channel.read(in.buffer(), null, this);
+                    return;
+                }
+                //回显可能分多次到达, 收齐size字节才算一次往返
+                if(in.buffer().hasRemaining()){
+                    channel.read(in.buffer(), null, this);
+                    return;
+                }
+                if(recording){
+                    latency.record(System.nanoTime() - start);
+                    ops++;
+                }
+                ping();
+            }
+
+            @Override
+            public void failed(Throwable exc, Object attachment) {
+                if(running){
+                    System.out.println("连接失败: " + exc);
+                }
+                finish();
+            }
+
+            private void finish(){
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    //忽略
+                }
+                out.release();
+                in.release();
+                done.countDown();
+            }
+        }
+
+        void run() throws Exception {
+            Server server = null;
+            if(embedded){
+                server = new Server(port);
+                server.start();
+            }
+            AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "echo-client");
+                thread.setDaemon(true);
+                return thread;
+            });
+            CountDownLatch done = new CountDownLatch(connections);
+            Pinger[] pingers = new Pinger[connections];
+            for(int i = 0; i < connections; i++){
+                AsynchronousSocketChannel channel = AsynchronousSocketChannel.open(group);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.connect(new InetSocketAddress(host, port)).get();
+                pingers[i] = new Pinger(channel, done);
+            }
+            for(Pinger pinger : pingers){
+                pinger.ping();
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+            recording = true;
+            long begin = System.nanoTime();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+            recording = false;
+            double elapsed = (System.nanoTime() - begin) / 1e9;
+            running = false;
+            done.await(5, TimeUnit.SECONDS);
+
+            //所有连接都已结束, 其直方图不会再被修改
+            LatencyHistogram total = new LatencyHistogram();
+            long ops = 0;
+            for(Pinger pinger : pingers){
+                total.add(pinger.latency);
+                ops += pinger.ops;
+            }
+            System.out.printf("连接 %d, 消息 %d字节, 测量 %.1fs: %.0f ops/s%n", connections, size, elapsed, ops / elapsed);
+            System.out.println("往返延迟 " + total.summary());
+            group.shutdownNow();
+            if(server != null){
+                server.stop();
+            }
+        }
+
+        void parse(String[] args){
+            for(int i = 1; i < args.length; i++){
+                switch (args[i]){
+                    case "--host":
+                        host = args[++i];
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--connections":
+                        connections = Integer.parseInt(args[++i]);
+                        break;
+                    case "--size":
+                        size = Integer.parseInt(args[++i]);
+                        break;
+                    case "--warmup":
+                        warmup = Integer.parseInt(args[++i]);
+                        break;
+                    case "--seconds":
+                        seconds = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--embedded":
+                        embedded = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option: " + args[i]);
+                }
+            }
+            if(connections < 1 || size < 1 || threads < 1){
+                throw new IllegalArgumentException("connections, size and threads must be positive");
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length > 0 && "--bench".equals(args[0])){
+            EchoBenchmark benchmark = new EchoBenchmark();
+            benchmark.parse(args);
+            benchmark.run();
+            return;
+        }
         Client client = new Client();
         client.start();
     }
@@ -0,0 +1,114 @@
+package client.aio;
+
+import common.buffer.BufferPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.net.StandardSocketOptions;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多个ChatSession共用的异步通道组: 所有会话的连接、读写回调都在这组固定数量的线程上执行,
+ * 会话本身不占用线程, 一个JVM可以同时维持上万个会话(用于长时间压测和机器人)
+ */
+public class ClientGroup {
+    public static final int DEFAULT_MAX_OUTBOUND_BYTES = 256 * 1024;
+
+    private final AsynchronousChannelGroup group;
+    private final BufferPool pool = BufferPool.DEFAULT;
+    //每个会话待发送队列的字节上限
+    private final long maxOutboundBytes;
+    //当前处于打开状态的会话数
+    private final AtomicInteger openSessions = new AtomicInteger();
+
+    public ClientGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ClientGroup(int threads) throws IOException {
+        this(threads, DEFAULT_MAX_OUTBOUND_BYTES);
+    }
+
+    public ClientGroup(int threads, long maxOutboundBytes) throws IOException {
+        if(threads < 1){
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        if(maxOutboundBytes <= 0){
+            throw new IllegalArgumentException("maxOutboundBytes must be positive: " + maxOutboundBytes);
+        }
+        this.maxOutboundBytes = maxOutboundBytes;
+        this.group = AsynchronousChannelGroup.withFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger next = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "aio-client-" + next.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 异步连接服务器, 立即返回; 连接成功后回调listener.onConnected(), 失败则回调onClosed()
+     * @param host
+     * @param port
+     * @param listener
+     * @return
+     * @throws IOException 通道组已关闭等
+     */
+    public ChatSession connect(String host, int port, SessionListener listener) throws IOException {
+        return connect(new InetSocketAddress(host, port), listener);
+    }
+
+    public ChatSession connect(InetSocketAddress address, SessionListener listener) throws IOException {
+        if(group.isShutdown()){
+            throw new ClosedChannelException();
+        }
+        AsynchronousSocketChannel channel = AsynchronousSocketChannel.open(group);
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        ChatSession session = new ChatSession(this, channel, listener);
+        openSessions.incrementAndGet();
+        session.connect(address);
+        return session;
+    }
+
+    BufferPool pool(){
+        return pool;
+    }
+
+    long maxOutboundBytes(){
+        return maxOutboundBytes;
+    }
+
+    void sessionClosed(){
+        openSessions.decrementAndGet();
+    }
+
+    public int openSessions(){
+        return openSessions.get();
+    }
+
+    /**
+     * 关闭通道组, 所有会话随之断开
+     * @param timeout
+     * @param unit
+     * @return 线程在超时前全部退出时返回true
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        group.shutdownNow();
+        return group.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,32 @@
+package client.aio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ChatSession的事件回调, 都在ClientGroup通道组的线程上执行, 不能在回调中阻塞
+ * 同一个会话的回调不会并发执行
+ */
+public interface SessionListener {
+
+    /**
+     * 收到服务器转发的一条消息
+     * @param session
+     * @param payload 只在回调期间有效, 需要保留时自行复制
+     */
+    void onMessage(ChatSession session, ByteBuffer payload);
+
+    /**
+     * 连接建立, 此后可以发送消息
+     * @param session
+     */
+    default void onConnected(ChatSession session){
+    }
+
+    /**
+     * 会话关闭, 每个会话只回调一次; 在通道关闭后由未完成的连接或读操作的回调发出, 即使close()是在其他线程调用的
+     * @param session
+     * @param cause 正常关闭时为null
+     */
+    default void onClosed(ChatSession session, Throwable cause){
+    }
+}
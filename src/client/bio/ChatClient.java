@@ -1,33 +1,56 @@
 package client.bio;
 
+import common.codec.FrameCodec;
+import common.codec.FrameDecoder;
+import common.codec.FrameHandler;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 public class ChatClient {
 
     private final String DEFAULT_SERVER_HOST = "127.0.0.1";
     private final int DEFAULT_SERVER_PORT = 8888;
     private final String QUIT = "quit";
+    private final int BUFFER = 8192;
 
     private Socket socket;
-    private BufferedReader reader;
-    private BufferedWriter writer;
+    private InputStream reader;
+    private OutputStream writer;
+    //服务器转发的消息按帧切分, 一次read解析出的多条消息先放进队列, receive()逐条返回
+    private FrameDecoder decoder = new FrameDecoder();
+    private Queue<String> received = new ArrayDeque<>();
+    private byte[] buffer = new byte[BUFFER];
+    private FrameHandler collector = new FrameHandler() {
+        @Override
+        public void onFrame(byte type, ByteBuffer payload) {
+            if(type == FrameCodec.TEXT){
+                received.offer(FrameCodec.decodeText(payload));
+            }
+        }
+    };
 
     // 发送消息给服务器
     public void send(String msg) throws IOException {
         if(!socket.isOutputShutdown()){
-            writer.write(msg + "\n");
+            writer.write(FrameCodec.text(msg).array());
             writer.flush();
         }
     }
 
     // 从服务器接收消息
     public String receive() throws IOException{
-        String msg = null;
-        if(!socket.isInputShutdown()){
-            msg = reader.readLine();
+        while (received.isEmpty() && !socket.isInputShutdown()){
+            int n = reader.read(buffer);
+            if(n == -1){
+                return null;
+            }
+            decoder.decode(ByteBuffer.wrap(buffer, 0, n), collector);
         }
-        return msg;
+        return received.poll();
     }
 
     // 检查用户是否准备退出
@@ -49,8 +72,8 @@ public class ChatClient {
             //创建socke
             socket = new Socket(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT);
             //创建IO流
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            reader = socket.getInputStream();
+            writer = new BufferedOutputStream(socket.getOutputStream());
             //处理用户的输入 -- UserHandler
             new Thread(new UserInputHandler(this)).start();
             //读取服务器转发的消息
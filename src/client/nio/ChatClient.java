@@ -1,32 +1,62 @@
 package client.nio;
 
 import client.nio.UserInputHandler;
-import server.nio.ChatServer;
+import common.buffer.BufferPool;
+import common.buffer.PooledBuffer;
+import common.codec.FrameCodec;
+import common.codec.FrameDecoder;
+import common.codec.FrameHandler;
+import common.transfer.FileTransfer;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
 
 public class ChatClient {
     private static final String DEFAULT_SERVER_HOST = "127.0.0.1";
     private static final int DEFAULT_SERVER_PORT = 8888;
     private static final String QUIT = "quit";
-    private static final int BUFFER = 1024;
+    //"/file 路径" 把本地文件分享给聊天室中的其他人
+    private static final String FILE_COMMAND = "/file ";
+    private static final int BUFFER = 8192;
 
     private String host;
     private int port;
     private SocketChannel client;
-    private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER);
+    //读写都使用池化的直接缓冲区
+    private BufferPool pool = BufferPool.DEFAULT;
+    private ByteBuffer rBuffer = pool.allocate(BUFFER).buffer();
     private Selector selector;
-    private Charset charset = Charset.forName("UTF-8");
+    //服务器转发的消息按帧切分, 残缺的帧保留到下一次读事件
+    private FrameDecoder decoder = new FrameDecoder();
+    //收到的文件保存在这里, 取自系统属性chatroom.downloadDir
+    private File downloadDir = new File(System.getProperty("chatroom.downloadDir", "downloads"));
+    //正在接收的文件, 只在selector线程中访问
+    private FileChannel download;
+    private File downloadFile;
+    private long downloadRemaining;
+    private FrameHandler printer = new FrameHandler() {
+        @Override
+        public void onFrame(byte type, ByteBuffer payload) throws IOException {
+            if(type == FrameCodec.TEXT){
+                System.out.println(FrameCodec.decodeText(payload));
+            } else if(type == FrameCodec.FILE_BEGIN){
+                beginDownload(FrameCodec.fileName(payload), FrameCodec.fileSize(payload));
+            } else if(type == FrameCodec.FILE_CHUNK){
+                receiveChunk(payload);
+            }
+        }
+    };
 
     public ChatClient(){
         this(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT);
@@ -60,6 +90,7 @@ public class ChatClient {
             //用户正常退出关闭了selector, 但是while loop还在继续, 所以会出现java.nio.channels.ClosedSelectorException, catch即可
         } finally {
             close(selector);
+            finishDownload();
         }
     }
 
@@ -77,22 +108,85 @@ public class ChatClient {
         // READ事件 - 服务器转发事件
         else if(key.isReadable()){
             SocketChannel client = (SocketChannel) key.channel();
-            String msg = receive(client);
-            if(msg.isEmpty()){
+            if(!receive(client)){
                 //服务器异常
                 close(selector);
                 System.out.println("服务器异常");
-            }else {
-                System.out.println(msg);
             }
         }
     }
 
-    private String receive(SocketChannel client) throws IOException {
-        rBuffer.clear();
-        while (client.read(rBuffer) > 0){client.read(rBuffer);};
-        rBuffer.flip();
-        return String.valueOf(charset.decode(rBuffer));
+    /**
+     * 读取服务器数据并按帧打印
+     * @param client
+     * @return 服务器已断开时返回false
+     * @throws IOException
+     */
+    private boolean receive(SocketChannel client) throws IOException {
+        int n;
+        while (true){
+            rBuffer.clear();
+            n = client.read(rBuffer);
+            if(n <= 0){
+                break;
+            }
+            rBuffer.flip();
+            decoder.decode(rBuffer, printer);
+        }
+        return n >= 0;
+    }
+
+    /**
+     * 服务器开始发送一个文件, 保存到downloadDir中; 同名文件已存在时在名字前加序号
+     * @param name
+     * @param size
+     * @throws IOException
+     */
+    private void beginDownload(String name, long size) throws IOException {
+        finishDownload();
+        if(!downloadDir.isDirectory() && !downloadDir.mkdirs()){
+            throw new IOException("无法创建目录: " + downloadDir);
+        }
+        String base = new File(name.replace('\\', '/')).getName();
+        if(base.isEmpty() || "..".equals(base)){
+            base = "file";
+        }
+        File file = new File(downloadDir, base);
+        for(int i = 1; file.exists(); i++){
+            file = new File(downloadDir, i + "-" + base);
+        }
+        downloadFile = file;
+        downloadRemaining = size;
+        download = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        if(size == 0){
+            finishDownload();
+        }
+    }
+
+    private void receiveChunk(ByteBuffer payload) throws IOException {
+        if(download == null){
+            return;
+        }
+        downloadRemaining -= payload.remaining();
+        while (payload.hasRemaining()){
+            download.write(payload);
+        }
+        if(downloadRemaining <= 0){
+            finishDownload();
+        }
+    }
+
+    private void finishDownload(){
+        if(download == null){
+            return;
+        }
+        close(download);
+        download = null;
+        if(downloadRemaining <= 0){
+            System.out.println("已接收文件: " + downloadFile.getAbsolutePath());
+        } else {
+            System.out.println("文件接收不完整: " + downloadFile.getAbsolutePath());
+        }
     }
 
     //UserInputHandler转发信息
@@ -101,12 +195,19 @@ public class ChatClient {
         if(msg.isEmpty()){
             return;
         }
-        wBuffer.clear();
-        wBuffer.put(charset.encode(msg));
-        //write -> read;
-        wBuffer.flip();
-        while (wBuffer.hasRemaining()){
-            client.write(wBuffer);
+        if(msg.startsWith(FILE_COMMAND)){
+            sendFile(new File(msg.substring(FILE_COMMAND.length()).trim()));
+            return;
+        }
+        //按帧格式编码
+        PooledBuffer frame = FrameCodec.encode(pool, FrameCodec.TEXT, msg);
+        try {
+            ByteBuffer wBuffer = frame.buffer();
+            while (wBuffer.hasRemaining()){
+                client.write(wBuffer);
+            }
+        } finally {
+            frame.release();
         }
 
         if(readyToQuit(msg)){
@@ -114,6 +215,52 @@ public class ChatClient {
         }
     }
 
+    /**
+     * 上传文件: 先发FILE_BEGIN, 再把文件内容分成FILE_CHUNK帧, 每帧的内容用transferTo直接从文件发到socket
+     * 在UserInputHandler线程中执行, 发送完之前不处理新的输入
+     * @param file
+     * @throws IOException
+     */
+    private void sendFile(File file) throws IOException {
+        if(!file.isFile()){
+            System.out.println("文件不存在: " + file);
+            return;
+        }
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            long size = in.size();
+            PooledBuffer begin = FrameCodec.fileBegin(pool, size, file.getName());
+            try {
+                writeFully(begin.buffer());
+            } finally {
+                begin.release();
+            }
+            ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH);
+            for(long position = 0; position < size; position += FrameCodec.FILE_CHUNK_SIZE){
+                int length = (int) Math.min(FrameCodec.FILE_CHUNK_SIZE, size - position);
+                header.clear();
+                FrameCodec.writeHeader(header, FrameCodec.FILE_CHUNK, length);
+                header.flip();
+                writeFully(header);
+                FileTransfer chunk = new FileTransfer(in, position, length);
+                while (!chunk.isDone()){
+                    if(chunk.transferTo(client) == 0){
+                        //非阻塞socket的发送缓冲区已满, 稍等再试
+                        LockSupport.parkNanos(100000);
+                    }
+                }
+            }
+            System.out.println("已发送文件: " + file.getName() + " (" + size + "字节)");
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()){
+            if(client.write(buffer) == 0){
+                LockSupport.parkNanos(100000);
+            }
+        }
+    }
+
     public boolean readyToQuit(String msg){
         return QUIT.equals(msg);
     }
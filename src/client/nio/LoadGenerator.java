@@ -0,0 +1,581 @@
+package client.nio;
+
+import common.buffer.BufferPool;
+import common.buffer.OutboundQueue;
+import common.buffer.PooledBuffer;
+import common.codec.FrameCodec;
+import common.codec.FrameDecoder;
+import common.codec.FrameHandler;
+import common.metrics.LatencyHistogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于NIO客户端的压测工具: 一个进程用少量selector线程打开大量连接(上万个), 按固定速率发送消息,
+ * 统计服务器转发回来的消息的端到端延迟分布和吞吐量, 全部运行在回环地址上
+ *
+ * 每条消息的负载 = [8字节计划发送时间][4字节魔数][填充], 接收端按魔数识别压测消息, 忽略其他消息(如"退出群聊")
+ * 时间戳取的是按速率计划的发送时间而不是实际写出的时间: 发送线程落后于计划时, 排队等待的时间也计入延迟,
+ * 避免服务器变慢时压测工具跟着放慢而低估延迟(coordinated omission)
+ * 待发送队列已满而跳过的消息不会被转发, 但同样计入延迟: 记下它的计划发送时间, 队列清空(连接重新能发送)时
+ * 按"清空时刻 - 计划发送时间"记录一个样本, 否则服务器最慢的那段时间恰好没有样本
+ *
+ * 单个源地址最多约2.8万个临时端口, 更多的连接用--sources把本地地址分散到127.0.0.1~127.0.0.N
+ * 运行前需要调大文件描述符上限(ulimit -n)
+ * 用法: java client.nio.LoadGenerator [--host 127.0.0.1] [--port 7777] [--connections 1000] [--threads 4]
+ *                                    [--senders 10] [--rate 1000] [--size 64] [--warmup 5] [--duration 30] [--sources 1]
+ */
+public class LoadGenerator {
+    private static final int MAGIC = 0x4C4F4144;
+    private static final int MESSAGE_HEADER = 12;
+    private static final int BUFFER = 64 * 1024;
+    //每个线程同时进行中的connect数量上限, 防止服务器accept队列溢出
+    private static final int MAX_PENDING_CONNECTS = 256;
+    //每个连接待发送队列的上限, 超过说明服务器读得比计划的速率慢
+    private static final long MAX_OUTBOUND_BYTES = 256 * 1024;
+    //发送线程落后于计划时一轮最多补发的消息数, 之后先处理读事件
+    private static final int MAX_SENDS_PER_PASS = 1024;
+
+    private String host = "127.0.0.1";
+    private int port = 7777;
+    private int connections = 1000;
+    private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int senders = 10;
+    private double rate = 1000;
+    private int size = 64;
+    private int warmup = 5;
+    private int duration = 30;
+    private int sources = 1;
+
+    private final BufferPool pool = BufferPool.DEFAULT;
+    private Worker[] workers;
+    //所有连接建立后才开始发送, 各线程以此为计划发送时间的起点
+    private volatile long sendStart;
+    private volatile boolean running = true;
+
+    /**
+     * 一个selector线程及其负责的连接
+     */
+    private class Worker implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final int target;
+        private final int senderCount;
+        //本线程的发送速率(条/秒)
+        private final double workerRate;
+        private final Connection[] connections;
+        private int opened;
+        //创建连接失败(通常是文件描述符或本地端口用完)后不再尝试, 剩下的连接计入unopened
+        private boolean openFailed;
+        private int pendingConnects;
+        private int nextSender;
+        //读缓冲区: 本线程的所有连接共用
+        private final ByteBuffer readBuffer;
+        private final PooledBuffer readOwner;
+
+        //以下统计只由本线程写入, 其他线程读取
+        private volatile int connected;
+        private volatile long sent;
+        private volatile long delivered;
+        private volatile long failed;
+        //因创建连接失败而放弃、从未尝试的连接数
+        private volatile int unopened;
+        //run()已经退出, 之后不会再有连接建立
+        private volatile boolean exited;
+        //待发送队列已满而跳过的消息数
+        private volatile long backpressured;
+        //interval供主线程每秒取走清零, total记录预热结束后的全部样本, 以对象本身作为锁
+        private final LatencyHistogram interval = new LatencyHistogram();
+        private final LatencyHistogram total = new LatencyHistogram();
+        private volatile boolean recordTotal;
+
+        Worker(int index, int target, int senderCount, double workerRate) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+            this.target = target;
+            this.senderCount = senderCount;
+            this.workerRate = workerRate;
+            this.connections = new Connection[target];
+            this.readOwner = pool.allocate(BUFFER);
+            this.readBuffer = readOwner.buffer();
+        }
+
+        @Override
+        public void run() {
+            try {
+                long nextSend = 0;
+                long intervalNanos = workerRate > 0 ? (long) (1e9 / workerRate) : 0;
+                while (running){
+                    openConnections();
+                    long timeout = 100;
+                    long start = sendStart;
+                    if(start != 0 && intervalNanos > 0 && senderCount > 0){
+                        if(nextSend == 0){
+                            //各线程错开起始时间, 避免同时发送
+                            nextSend = start + intervalNanos * index / workers.length;
+                        }
+                        long now = System.nanoTime();
+                        for(int i = 0; i < MAX_SENDS_PER_PASS && nextSend <= now; i++){
+                            send(nextSend);
+                            nextSend += intervalNanos;
+                        }
+                        timeout = nextSend <= now ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextSend - now));
+                    }
+                    if(timeout == 0){
+                        selector.selectNow();
+                    } else {
+                        selector.select(timeout);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()){
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            handles(connection, key);
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                exited = true;
+                for(int i = 0; i < opened; i++){
+                    connections[i].close();
+                }
+                close(selector);
+                readOwner.release();
+            }
+        }
+
+        /**
+         * 逐步打开连接, 同时进行中的connect不超过MAX_PENDING_CONNECTS个
+         * 创建或配置通道失败(EMFILE, EADDRNOTAVAIL等)时关闭该通道, 计为失败并停止打开更多连接, 已建立的连接继续工作
+         */
+        private void openConnections() {
+            while (!openFailed && opened < target && pendingConnects < MAX_PENDING_CONNECTS){
+                int n = opened;
+                SocketChannel channel = null;
+                try {
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    if(sources > 1){
+                        int global = index + n * workers.length;
+                        channel.bind(new InetSocketAddress("127.0.0." + (1 + global % sources), 0));
+                    }
+                } catch (IOException e) {
+                    LoadGenerator.close(channel);
+                    System.err.println(Thread.currentThread().getName() + " 创建第" + (n + 1) + "个连接失败, 停止打开更多连接: " + e);
+                    openFailed = true;
+                    failed++;
+                    unopened = target - n - 1;
+                    return;
+                }
+                Connection connection = new Connection(this, channel, n < senderCount);
+                connections[opened++] = connection;
+                try {
+                    if(channel.connect(new InetSocketAddress(host, port))){
+                        connection.connected();
+                    } else {
+                        connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                        pendingConnects++;
+                    }
+                } catch (IOException e) {
+                    connection.close();
+                }
+            }
+        }
+
+        private void handles(Connection connection, SelectionKey key) throws IOException {
+            if(key.isConnectable()){
+                pendingConnects--;
+                connection.channel.finishConnect();
+                connection.connected();
+                return;
+            }
+            if(key.isWritable()){
+                connection.flush();
+            }
+            if(key.isValid() && key.isReadable()){
+                connection.receive();
+            }
+        }
+
+        /**
+         * 轮流选择一个已连接的发送者发送一条消息
+         * @param scheduled 计划发送时间
+         */
+        private void send(long scheduled){
+            for(int i = 0; i < senderCount; i++){
+                Connection connection = connections[nextSender];
+                nextSender = (nextSender + 1) % senderCount;
+                if(connection != null && connection.open && connection.established){
+                    connection.send(scheduled);
+                    return;
+                }
+            }
+        }
+
+        private void record(long latency){
+            synchronized (interval){
+                interval.record(latency);
+            }
+            if(recordTotal){
+                synchronized (total){
+                    total.record(latency);
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个压测连接: 独立的解码器和待发送队列
+     */
+    private class Connection implements FrameHandler {
+        private final Worker worker;
+        private final SocketChannel channel;
+        private final boolean sender;
+        private final FrameDecoder decoder = new FrameDecoder();
+        private final OutboundQueue outbound = new OutboundQueue(MAX_OUTBOUND_BYTES);
+        private SelectionKey key;
+        private boolean open = true;
+        private boolean established;
+        //待发送队列已满而跳过的消息的计划发送时间, 队列清空时计入延迟
+        private long[] skipped = new long[16];
+        private int skippedCount;
+
+        Connection(Worker worker, SocketChannel channel, boolean sender){
+            this.worker = worker;
+            this.channel = channel;
+            this.sender = sender;
+        }
+
+        void connected() throws IOException {
+            key = channel.register(worker.selector, SelectionKey.OP_READ, this);
+            established = true;
+            worker.connected++;
+        }
+
+        void send(long scheduled){
+            PooledBuffer frame = pool.allocate(FrameCodec.HEADER_LENGTH + size);
+            ByteBuffer buffer = frame.buffer();
+            FrameCodec.writeHeader(buffer, FrameCodec.TEXT, size);
+            buffer.putLong(scheduled);
+            buffer.putInt(MAGIC);
+            //填充部分的内容无关紧要, 不逐字节写入
+            buffer.position(FrameCodec.HEADER_LENGTH + size);
+            buffer.flip();
+            if(!outbound.offer(buffer, frame)){
+                frame.release();
+                worker.backpressured++;
+                if(skippedCount == skipped.length){
+                    skipped = Arrays.copyOf(skipped, skippedCount << 1);
+                }
+                skipped[skippedCount++] = scheduled;
+                return;
+            }
+            worker.sent++;
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void flush() throws IOException {
+            outbound.flushTo(channel);
+            if(outbound.isEmpty()){
+                key.interestOps(SelectionKey.OP_READ);
+                recordSkipped();
+            } else {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * 跳过的消息最早也要等到队列清空才能发出, 以此作为它们延迟的下限
+         */
+        private void recordSkipped(){
+            if(skippedCount == 0){
+                return;
+            }
+            long now = System.nanoTime();
+            for(int i = 0; i < skippedCount; i++){
+                worker.record(now - skipped[i]);
+            }
+            skippedCount = 0;
+        }
+
+        void receive() throws IOException {
+            ByteBuffer buffer = worker.readBuffer;
+            while (true){
+                buffer.clear();
+                int n = channel.read(buffer);
+                if(n < 0){
+                    close();
+                    return;
+                }
+                if(n == 0){
+                    return;
+                }
+                buffer.flip();
+                decoder.decode(buffer, this);
+            }
+        }
+
+        @Override
+        public void onFrame(byte type, ByteBuffer payload) {
+            //转发的负载 = 发送者前缀 + 原始消息
+            int offset = payload.limit() - size;
+            if(type != FrameCodec.TEXT || offset < payload.position() || payload.getInt(offset + 8) != MAGIC){
+                return;
+            }
+            worker.delivered++;
+            worker.record(System.nanoTime() - payload.getLong(offset));
+        }
+
+        void close(){
+            if(!open){
+                return;
+            }
+            open = false;
+            if(key != null){
+                key.cancel();
+            }
+            if(established){
+                worker.connected--;
+            }
+            if(running){
+                worker.failed++;
+            }
+            outbound.clear();
+            decoder.reset();
+            LoadGenerator.close(channel);
+        }
+    }
+
+    private void start() throws Exception {
+        workers = new Worker[threads];
+        for(int i = 0; i < threads; i++){
+            //连接和发送者平均分配到各线程
+            int target = connections / threads + (i < connections % threads ? 1 : 0);
+            int senderCount = senders / threads + (i < senders % threads ? 1 : 0);
+            workers[i] = new Worker(i, target, Math.min(senderCount, target), rate * senderCount / Math.max(1, senders));
+        }
+        for(int i = 0; i < threads; i++){
+            new Thread(workers[i], "load-" + i).start();
+        }
+
+        //等待所有连接建立
+        long begin = System.nanoTime();
+        int connected;
+        while ((connected = connected()) < connections){
+            Thread.sleep(1000);
+            System.out.printf("已连接 %d/%d, 失败 %d, 未打开 %d%n", connected, connections, failed(), unopened());
+            if(failed() > 0 && connected + failed() + unopened() >= connections){
+                break;
+            }
+            if(exited()){
+                System.out.println("有worker线程已经退出, 不再等待");
+                break;
+            }
+        }
+        System.out.printf("%d个连接建立用时 %.1fs%n", connected(), (System.nanoTime() - begin) / 1e9);
+
+        sendStart = System.nanoTime();
+        long sentBase = 0;
+        long deliveredBase = 0;
+        long measureStart = 0;
+        LatencyHistogram snapshot = new LatencyHistogram();
+        long lastSent = 0;
+        long lastDelivered = 0;
+        for(int second = 1; second <= warmup + duration; second++){
+            Thread.sleep(1000);
+            if(second == warmup + 1 || (warmup == 0 && second == 1)){
+                //预热结束, 之后的样本计入总结果
+                for(Worker worker : workers){
+                    worker.recordTotal = true;
+                }
+            }
+            long sent = sent();
+            long delivered = delivered();
+            snapshot.reset();
+            for(Worker worker : workers){
+                synchronized (worker.interval){
+                    snapshot.add(worker.interval);
+                    worker.interval.reset();
+                }
+            }
+            System.out.printf("%s %3ds 在线 %d, sent/s %d, delivered/s %d, 背压 %d, p50=%.1fus p99=%.1fus p999=%.1fus%n",
+                    second <= warmup ? "预热" : "测量", second, connected(), sent - lastSent, delivered - lastDelivered,
+                    backpressured(), snapshot.percentile(50) / 1000.0, snapshot.percentile(99) / 1000.0,
+                    snapshot.percentile(99.9) / 1000.0);
+            lastSent = sent;
+            lastDelivered = delivered;
+            if(second == warmup){
+                sentBase = sent;
+                deliveredBase = delivered;
+                measureStart = System.nanoTime();
+            }
+        }
+        if(measureStart == 0){
+            measureStart = sendStart;
+        }
+        double elapsed = (System.nanoTime() - measureStart) / 1e9;
+        running = false;
+        for(Worker worker : workers){
+            worker.selector.wakeup();
+        }
+
+        LatencyHistogram total = new LatencyHistogram();
+        for(Worker worker : workers){
+            synchronized (worker.total){
+                total.add(worker.total);
+            }
+        }
+        System.out.println();
+        System.out.printf("连接 %d, 发送者 %d, 计划速率 %.0f msgs/s, 消息 %d字节, 测量 %.1fs%n",
+                connections, senders, rate, size, elapsed);
+        System.out.printf("sent/s %.0f, delivered/s %.0f, 背压跳过 %d, 断开 %d%n",
+                (sent() - sentBase) / elapsed, (delivered() - deliveredBase) / elapsed, backpressured(), failed());
+        System.out.println("延迟 " + total.summary());
+        if(backpressured() > 0){
+            System.out.println("(背压跳过的消息按计划发送时间到待发送队列清空的时间计入延迟)");
+        }
+    }
+
+    private int connected(){
+        int total = 0;
+        for(Worker worker : workers){
+            total += worker.connected;
+        }
+        return total;
+    }
+
+    private int unopened(){
+        int total = 0;
+        for(Worker worker : workers){
+            total += worker.unopened;
+        }
+        return total;
+    }
+
+    private boolean exited(){
+        for(Worker worker : workers){
+            if(worker.exited){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long failed(){
+        long total = 0;
+        for(Worker worker : workers){
+            total += worker.failed;
+        }
+        return total;
+    }
+
+    private long sent(){
+        long total = 0;
+        for(Worker worker : workers){
+            total += worker.sent;
+        }
+        return total;
+    }
+
+    private long delivered(){
+        long total = 0;
+        for(Worker worker : workers){
+            total += worker.delivered;
+        }
+        return total;
+    }
+
+    private long backpressured(){
+        long total = 0;
+        for(Worker worker : workers){
+            total += worker.backpressured;
+        }
+        return total;
+    }
+
+    private static void close(Closeable closeable){
+        if(closeable != null){
+            try {
+                closeable.close();
+            } catch (IOException e){
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void parse(String[] args){
+        for(int i = 0; i + 1 < args.length; i += 2){
+            String value = args[i + 1];
+            switch (args[i]){
+                case "--host":
+                    host = value;
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--connections":
+                    connections = Integer.parseInt(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--senders":
+                    senders = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(value);
+                    break;
+                case "--size":
+                    size = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    duration = Integer.parseInt(value);
+                    break;
+                case "--sources":
+                    sources = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option: " + args[i]);
+            }
+        }
+        if(connections < 1 || threads < 1 || sources < 1){
+            throw new IllegalArgumentException("connections, threads and sources must be positive");
+        }
+        if(size < MESSAGE_HEADER){
+            throw new IllegalArgumentException("size must be at least " + MESSAGE_HEADER + ": " + size);
+        }
+        threads = Math.min(threads, connections);
+        senders = Math.min(senders, connections);
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parse(args);
+        generator.start();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,158 @@
+package common.buffer;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按大小分级的直接缓冲区池, 所有传输方式(nio/aio)的服务器和客户端共用
+ * 堆缓冲区写入socket时JDK会先复制到临时直接缓冲区, 直接分配直接缓冲区又很昂贵, 所以复用它们
+ * 等级为256B, 1KB, 4KB, 16KB, 64KB, 256KB, 1MB, 更大的请求直接分配, 不进入池
+ * 每个等级缓存的缓冲区合计不超过bytesPerClass字节(-Dchatroom.buffer.bytesPerClass, 默认4MB), 所以大的等级缓存的个数少,
+ * 整个池最多保留SIZE_CLASSES * bytesPerClass字节的直接内存
+ * 调试模式(-Dchatroom.buffer.leakDetection=true)下会记录每次分配的调用栈, 缓冲区未release就被GC时打印出来
+ */
+public class BufferPool {
+    private static final int MIN_SIZE = 256;
+    private static final int SIZE_CLASSES = 7;
+    //每个等级最多缓存的字节数, 该等级缓存的个数为它除以缓冲区大小(至少1个)
+    private static final long DEFAULT_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+    public static final BufferPool DEFAULT = new BufferPool(
+            Long.getLong("chatroom.buffer.bytesPerClass", DEFAULT_BYTES_PER_CLASS),
+            Boolean.getBoolean("chatroom.buffer.leakDetection"));
+
+    private final ArrayBlockingQueue<PooledBuffer>[] classes;
+    private final boolean leakDetection;
+
+    //调试模式下未释放的缓冲区, 值无意义
+    private final Map<LeakRecord, Boolean> liveRecords = new ConcurrentHashMap<>();
+    private final ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<>();
+
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong poolMisses = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * @param bytesPerClass 每个等级最多缓存的字节数
+     * @param leakDetection 是否记录分配位置以检测泄漏
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long bytesPerClass, boolean leakDetection){
+        if(bytesPerClass <= 0){
+            throw new IllegalArgumentException("bytesPerClass must be positive: " + bytesPerClass);
+        }
+        this.leakDetection = leakDetection;
+        this.classes = new ArrayBlockingQueue[SIZE_CLASSES];
+        for(int i = 0; i < SIZE_CLASSES; i++){
+            long size = MIN_SIZE << (i << 1);
+            classes[i] = new ArrayBlockingQueue<>((int) Math.max(1, Math.min(Integer.MAX_VALUE, bytesPerClass / size)));
+        }
+    }
+
+    /**
+     * 分配至少capacity字节的缓冲区, 引用计数为1, limit为capacity
+     * @param capacity
+     * @return
+     */
+    public PooledBuffer allocate(int capacity){
+        allocations.incrementAndGet();
+        int sizeClass = sizeClass(capacity);
+        PooledBuffer pooled = null;
+        if(sizeClass >= 0){
+            pooled = classes[sizeClass].poll();
+        }
+        if(pooled == null){
+            poolMisses.incrementAndGet();
+            int size = sizeClass >= 0 ? MIN_SIZE << (sizeClass << 1) : capacity;
+            pooled = new PooledBuffer(this, sizeClass, ByteBuffer.allocateDirect(size));
+        }
+        pooled.reset();
+        pooled.buffer().limit(capacity);
+        if(leakDetection){
+            reportLeaks();
+            LeakRecord record = new LeakRecord(pooled, leakQueue);
+            liveRecords.put(record, Boolean.TRUE);
+            pooled.leak = record;
+        }
+        return pooled;
+    }
+
+    void recycle(PooledBuffer pooled){
+        if(pooled.leak != null){
+            liveRecords.remove(pooled.leak);
+            pooled.leak.clear();
+            pooled.leak = null;
+        }
+        //超出最大等级或者池已满时直接丢弃, 由GC回收
+        if(pooled.sizeClass >= 0){
+            classes[pooled.sizeClass].offer(pooled);
+        }
+    }
+
+    private static int sizeClass(int capacity){
+        int size = MIN_SIZE;
+        for(int i = 0; i < SIZE_CLASSES; i++){
+            if(capacity <= size){
+                return i;
+            }
+            size <<= 2;
+        }
+        return -1;
+    }
+
+    private void reportLeaks(){
+        LeakRecord record;
+        while ((record = (LeakRecord) leakQueue.poll()) != null){
+            if(liveRecords.remove(record) != null){
+                leaks.incrementAndGet();
+                System.err.println("检测到缓冲区泄漏: 缓冲区在release()之前被GC回收, 分配位置:");
+                record.allocation.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 总分配次数
+     * @return
+     */
+    public long allocations(){
+        return allocations.get();
+    }
+
+    /**
+     * 池中没有可用缓冲区而新分配的次数, 稳定运行时应接近不变
+     * @return
+     */
+    public long poolMisses(){
+        return poolMisses.get();
+    }
+
+    /**
+     * 调试模式下检测到的泄漏次数
+     * @return
+     */
+    public long leaks(){
+        if(leakDetection){
+            reportLeaks();
+        }
+        return leaks.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool[allocations=" + allocations + ", misses=" + poolMisses + ", leaks=" + leaks + "]";
+    }
+
+    static final class LeakRecord extends WeakReference<PooledBuffer> {
+        final Throwable allocation = new Throwable("buffer allocated here");
+
+        LeakRecord(PooledBuffer referent, ReferenceQueue<PooledBuffer> queue){
+            super(referent, queue);
+        }
+    }
+}
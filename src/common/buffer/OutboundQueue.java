@@ -0,0 +1,415 @@
+package common.buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+
+/**
+ * 每个连接独占的待发送队列: 写不完的消息暂存在这里, 等通道可写(OP_WRITE)时再继续发送
+ * 队列按字节数限制大小, 超过上限时offer()返回false, 由调用方决定如何处理慢速客户端
+ * 入队时可以带上数据所属的PooledBuffer, 该条数据写完或被丢弃时自动release()
+ * 发送时把队首的多条消息聚合成一次gathering write, 单次聚合的消息数和字节数都有上限
+ * 分为两条通道:
+ *   interactive 聊天消息, offer()放入这里, 总是先发送
+ *   bulk        大块数据(文件的FILE_BEGIN帧和OutboundRegion), 只在interactive为空时发送, 由调用方按字节数分配发送额度;
+ *               OutboundRegion的字节不计入上限
+ * 两条通道只在帧边界上切换: bulk中写了一半的帧必须先写完, 否则接收方无法切分
+ * 只有flushTo()/flushInteractive()/flushBulk()支持bulk, 使用gather()/consumed()的异步通道只能使用interactive
+ * 非线程安全, 只能在连接所属的事件循环线程中使用(或由调用方加锁)
+ */
+public class OutboundQueue {
+    private static final int INITIAL_CAPACITY = 16;
+    public static final int DEFAULT_MAX_BATCH_MESSAGES = 64;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 256 * 1024;
+
+    private final Lane interactive = new Lane();
+    private final Lane bulk = new Lane();
+
+    private final long maxBytes;
+    //一次gathering write最多聚合的消息数与字节数
+    private final int maxBatchMessages;
+    private final int maxBatchBytes;
+    //gathering write使用的数组, 第一次发送时分配, 之后复用
+    private ByteBuffer[] batch;
+    //当前排队中尚未写出的字节数, 不包括OutboundRegion
+    private long queuedBytes;
+    //历史最高排队字节数, 用于观察慢速客户端
+    private long peakBytes;
+    //因超出上限被拒绝的消息数
+    private long rejected;
+
+    public OutboundQueue(long maxBytes){
+        this(maxBytes, DEFAULT_MAX_BATCH_MESSAGES, DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    public OutboundQueue(long maxBytes, int maxBatchMessages, int maxBatchBytes){
+        if(maxBytes <= 0){
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        if(maxBatchMessages <= 0 || maxBatchBytes <= 0){
+            throw new IllegalArgumentException("batch limits must be positive: " + maxBatchMessages + ", " + maxBatchBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.maxBatchMessages = maxBatchMessages;
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public boolean offer(ByteBuffer buffer){
+        return offer(buffer, null);
+    }
+
+    /**
+     * 把聊天消息追加到interactive的队尾
+     * @param buffer 待发送的数据, 调用方之后不能再修改它的position/limit
+     * @param owner buffer所属的池化缓冲区, 入队成功后由队列负责release(); 可以为null
+     * @return 超过字节上限时返回false, 消息不会入队, owner仍由调用方负责
+     */
+    public boolean offer(ByteBuffer buffer, PooledBuffer owner){
+        return offer(interactive, buffer, owner);
+    }
+
+    /**
+     * 与offer(buffer, owner)相同, 但放入bulk, 排在之前放入bulk的数据之后
+     * @param buffer
+     * @param owner
+     * @return
+     */
+    public boolean offerBulk(ByteBuffer buffer, PooledBuffer owner){
+        return offer(bulk, buffer, owner);
+    }
+
+    private boolean offer(Lane lane, ByteBuffer buffer, PooledBuffer owner){
+        int bytes = buffer.remaining();
+        if(queuedBytes + bytes > maxBytes){
+            rejected++;
+            return false;
+        }
+        lane.add(buffer, owner, null);
+        queuedBytes += bytes;
+        if(queuedBytes > peakBytes){
+            peakBytes = queuedBytes;
+        }
+        return true;
+    }
+
+    /**
+     * 把不在内存中的数据追加到bulk的队尾, 不受字节上限限制; 写完或被丢弃时由队列release()
+     * @param region
+     */
+    public void offer(OutboundRegion region){
+        bulk.add(null, null, region);
+    }
+
+    /**
+     * 先写interactive, 它为空后再写最多maxBatchBytes字节的bulk; socket发送缓冲区已满时写多少算多少, 不会自旋等待
+     * 剩余的数据留待下一次调用(下一轮事件循环或下一次OP_WRITE)
+     * @param channel
+     * @return 本次写出的字节数, 包括OutboundRegion写出的字节
+     * @throws IOException
+     */
+    public long flushTo(GatheringByteChannel channel) throws IOException {
+        long written = flushInteractive(channel);
+        if(interactive.size == 0){
+            written += flushBulk(channel, maxBatchBytes);
+        }
+        return written;
+    }
+
+    /**
+     * 写出interactive中的消息, 直到写完或socket写不进去; bulk中写了一半的帧会先被写完
+     * @param channel
+     * @return 本次写出的字节数
+     * @throws IOException
+     */
+    public long flushInteractive(GatheringByteChannel channel) throws IOException {
+        if(interactive.size == 0){
+            return 0;
+        }
+        long written = 0;
+        //bulk的当前帧写完之前不能插入其他消息
+        while (bulk.headInProgress()){
+            long n = writeBulkHead(channel, Long.MAX_VALUE, true);
+            written += n;
+            if(n == 0){
+                return written;
+            }
+        }
+        while (interactive.size > 0){
+            int n = gather(interactive);
+            long bytes = 0;
+            for(int i = 0; i < n; i++){
+                bytes += batch[i].remaining();
+            }
+            long w = channel.write(batch, 0, n);
+            Arrays.fill(batch, 0, n, null);
+            consumed(interactive, w);
+            written += w;
+            if(w < bytes){
+                break;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * interactive为空时写出约maxBytes字节的bulk(最后一次write可能略多于maxBytes)
+     * @param channel
+     * @param maxBytes 调用方分配给本连接的发送额度
+     * @return 本次写出的字节数; 小于maxBytes且bulk未写完说明socket已写不进去
+     * @throws IOException
+     */
+    public long flushBulk(GatheringByteChannel channel, long maxBytes) throws IOException {
+        long written = 0;
+        while (interactive.size == 0 && bulk.size > 0 && written < maxBytes){
+            long n = writeBulkHead(channel, maxBytes - written, false);
+            written += n;
+            if(n == 0){
+                break;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * 写bulk的队首: OutboundRegion由它自己写出, 连续的消息聚合成一次gathering write
+     * @param toBoundary 只写到当前帧结束为止
+     */
+    private long writeBulkHead(GatheringByteChannel channel, long maxBytes, boolean toBoundary) throws IOException {
+        OutboundRegion region = bulk.regions[bulk.head];
+        if(region != null){
+            long written = 0;
+            do {
+                long n = region.writeTo(channel, toBoundary ? 1 : maxBytes - written);
+                written += n;
+                if(n == 0){
+                    break;
+                }
+            } while (toBoundary && !region.atBoundary() && !region.isDone());
+            if(region.isDone()){
+                bulk.removeHead();
+            }
+            return written;
+        }
+        if(toBoundary){
+            long written = channel.write(bulk.ring[bulk.head]);
+            consumed(bulk, written);
+            return written;
+        }
+        int n = gather(bulk);
+        long written = channel.write(batch, 0, n);
+        Arrays.fill(batch, 0, n, null);
+        consumed(bulk, written);
+        return written;
+    }
+
+    /**
+     * 把interactive队首最多maxBatchMessages条、合计不超过maxBatchBytes字节(至少一条)的消息放入batch数组,
+     * 用于异步通道的gathering write; 写完成后必须调用consumed()
+     * @return batch中的消息数
+     */
+    public int gather(){
+        return gather(interactive);
+    }
+
+    private int gather(Lane lane){
+        if(batch == null){
+            batch = new ByteBuffer[maxBatchMessages];
+        }
+        int n = 0;
+        long bytes = 0;
+        while (n < lane.size && n < maxBatchMessages){
+            ByteBuffer buffer = lane.ring[(lane.head + n) & (lane.ring.length - 1)];
+            //聚合到OutboundRegion为止, 它由自己写出
+            if(buffer == null){
+                break;
+            }
+            if(n > 0 && bytes + buffer.remaining() > maxBatchBytes){
+                break;
+            }
+            bytes += buffer.remaining();
+            batch[n++] = buffer;
+        }
+        return n;
+    }
+
+    /**
+     * gather()返回的数组, 只在下一次gather()之前有效
+     * @return
+     */
+    public ByteBuffer[] batch(){
+        return batch;
+    }
+
+    /**
+     * 一次写操作完成: 移除interactive中已经完全写出的消息并release()对应的缓冲区
+     * @param written 本次写出的字节数
+     */
+    public void consumed(long written){
+        consumed(interactive, written);
+    }
+
+    private void consumed(Lane lane, long written){
+        queuedBytes -= written;
+        while (lane.size > 0 && lane.ring[lane.head] != null && !lane.ring[lane.head].hasRemaining()){
+            lane.removeHead();
+        }
+    }
+
+    public boolean isEmpty(){
+        return interactive.size == 0 && bulk.size == 0;
+    }
+
+    public boolean hasInteractive(){
+        return interactive.size > 0;
+    }
+
+    public boolean hasBulk(){
+        return bulk.size > 0;
+    }
+
+    public int size(){
+        return interactive.size + bulk.size;
+    }
+
+    public long queuedBytes(){
+        return queuedBytes;
+    }
+
+    /**
+     * @return 队列中OutboundRegion尚未写出的字节数
+     */
+    public long regionBytes(){
+        long total = 0;
+        for(int i = 0; i < bulk.size && bulk.regionCount > 0; i++){
+            OutboundRegion region = bulk.regions[(bulk.head + i) & (bulk.ring.length - 1)];
+            if(region != null){
+                total += region.remaining();
+            }
+        }
+        return total;
+    }
+
+    public long peakBytes(){
+        return peakBytes;
+    }
+
+    public long maxBytes(){
+        return maxBytes;
+    }
+
+    public long rejected(){
+        return rejected;
+    }
+
+    public int maxBatchMessages(){
+        return maxBatchMessages;
+    }
+
+    public int maxBatchBytes(){
+        return maxBatchBytes;
+    }
+
+    /**
+     * 丢弃所有未发送的数据(连接关闭时调用)
+     */
+    public void clear(){
+        interactive.clear();
+        bulk.clear();
+        queuedBytes = 0;
+    }
+
+    /**
+     * 一条通道: 环形数组, 每个位置是一条消息(ring)或一个OutboundRegion(regions)
+     */
+    private static final class Lane {
+        ByteBuffer[] ring = new ByteBuffer[INITIAL_CAPACITY];
+        PooledBuffer[] owners = new PooledBuffer[INITIAL_CAPACITY];
+        //不为null的位置是OutboundRegion, 对应的ring[]为null
+        OutboundRegion[] regions = new OutboundRegion[INITIAL_CAPACITY];
+        //入队时消息的position, 用于判断队首是否已经写了一部分
+        int[] starts = new int[INITIAL_CAPACITY];
+        int head;
+        int size;
+        int regionCount;
+
+        void add(ByteBuffer buffer, PooledBuffer owner, OutboundRegion region){
+            if(size == ring.length){
+                grow();
+            }
+            int tail = (head + size) & (ring.length - 1);
+            ring[tail] = buffer;
+            owners[tail] = owner;
+            regions[tail] = region;
+            starts[tail] = buffer == null ? 0 : buffer.position();
+            size++;
+            if(region != null){
+                regionCount++;
+            }
+        }
+
+        /**
+         * @return 队首的帧是否已经写了一部分
+         */
+        boolean headInProgress(){
+            if(size == 0){
+                return false;
+            }
+            OutboundRegion region = regions[head];
+            if(region != null){
+                return !region.atBoundary();
+            }
+            return ring[head].position() != starts[head];
+        }
+
+        void removeHead(){
+            PooledBuffer owner = owners[head];
+            if(owner != null){
+                owners[head] = null;
+                owner.release();
+            }
+            OutboundRegion region = regions[head];
+            if(region != null){
+                regions[head] = null;
+                regionCount--;
+                region.release();
+            }
+            ring[head] = null;
+            head = (head + 1) & (ring.length - 1);
+            size--;
+        }
+
+        void clear(){
+            while (size > 0){
+                removeHead();
+            }
+        }
+
+        private void grow(){
+            int capacity = ring.length << 1;
+            ByteBuffer[] bigger = new ByteBuffer[capacity];
+            PooledBuffer[] biggerOwners = new PooledBuffer[capacity];
+            OutboundRegion[] biggerRegions = new OutboundRegion[capacity];
+            int[] biggerStarts = new int[capacity];
+            for(int i = 0; i < size; i++){
+                int index = (head + i) & (ring.length - 1);
+                bigger[i] = ring[index];
+                biggerOwners[i] = owners[index];
+                biggerRegions[i] = regions[index];
+                biggerStarts[i] = starts[index];
+            }
+            ring = bigger;
+            owners = biggerOwners;
+            regions = biggerRegions;
+            starts = biggerStarts;
+            head = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundQueue[interactive=" + interactive.size + ", bulk=" + bulk.size + ", regions=" + bulk.regionCount
+                + ", bytes=" + queuedBytes + "/" + maxBytes
+                + ", peak=" + peakBytes + ", rejected=" + rejected + "]";
+    }
+}
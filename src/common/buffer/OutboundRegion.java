@@ -0,0 +1,33 @@
+package common.buffer;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 待发送队列中不在内存里的数据(例如磁盘上的文件区间), 由自己负责写入通道
+ * 与ByteBuffer消息不同, 它的字节不计入OutboundQueue的字节上限, 写完或被丢弃时由队列调用release()
+ */
+public interface OutboundRegion {
+    /**
+     * 写出一部分数据; 通道写不进去时返回, 不会自旋等待
+     * @param channel
+     * @param maxBytes 本次最多写出的字节数, 避免一个大文件长时间占用事件循环
+     * @return 本次写出的字节数
+     * @throws IOException
+     */
+    long writeTo(WritableByteChannel channel, long maxBytes) throws IOException;
+
+    boolean isDone();
+
+    /**
+     * @return 当前是否在帧边界上; 只有在边界上才能在它前面插入其他消息, 否则接收方无法切分
+     */
+    boolean atBoundary();
+
+    /**
+     * @return 尚未写出的字节数
+     */
+    long remaining();
+
+    void release();
+}
@@ -0,0 +1,82 @@
+package common.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 带引用计数的直接缓冲区, 由BufferPool分配
+ * 分配时引用计数为1; 每多一个持有者(例如广播时的每个接收者)调用一次retain(), 用完后各自release(),
+ * 计数归零时缓冲区回到池中, 之后不能再访问buffer()
+ */
+public final class PooledBuffer {
+    private static final AtomicIntegerFieldUpdater<PooledBuffer> REF_CNT =
+            AtomicIntegerFieldUpdater.newUpdater(PooledBuffer.class, "refCnt");
+
+    private final BufferPool pool;
+    //所属的大小等级, -1表示超出最大等级的非池化缓冲区
+    final int sizeClass;
+    private final ByteBuffer buffer;
+    private volatile int refCnt;
+    //调试模式下跟踪未释放的缓冲区
+    BufferPool.LeakRecord leak;
+
+    PooledBuffer(BufferPool pool, int sizeClass, ByteBuffer buffer){
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+    }
+
+    /**
+     * 底层的直接缓冲区, 分配时已clear()
+     * @return
+     */
+    public ByteBuffer buffer(){
+        return buffer;
+    }
+
+    public int refCnt(){
+        return refCnt;
+    }
+
+    public PooledBuffer retain(){
+        return retain(1);
+    }
+
+    public PooledBuffer retain(int increment){
+        for(;;){
+            int current = refCnt;
+            if(current <= 0){
+                throw new IllegalStateException("缓冲区已被释放: refCnt=" + current);
+            }
+            if(REF_CNT.compareAndSet(this, current, current + increment)){
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 引用计数减一, 归零时归还到池中
+     * @return 本次调用是否真正释放了缓冲区
+     */
+    public boolean release(){
+        int current = REF_CNT.decrementAndGet(this);
+        if(current == 0){
+            pool.recycle(this);
+            return true;
+        }
+        if(current < 0){
+            throw new IllegalStateException("缓冲区被重复释放: refCnt=" + current);
+        }
+        return false;
+    }
+
+    void reset(){
+        buffer.clear();
+        refCnt = 1;
+    }
+
+    @Override
+    public String toString() {
+        return "PooledBuffer[capacity=" + buffer.capacity() + ", refCnt=" + refCnt + "]";
+    }
+}
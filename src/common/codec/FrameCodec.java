@@ -0,0 +1,185 @@
+package common.codec;
+
+import common.buffer.BufferPool;
+import common.buffer.PooledBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * 聊天室的帧格式: 所有传输方式(bio/nio/aio)的客户端和服务器都使用同一种格式
+ * <pre>
+ * +----------------+------------+----------------------+
+ * | length (4字节)  | type (1字节) | payload (length字节)  |
+ * +----------------+------------+----------------------+
+ * </pre>
+ * length只包含payload的长度, 采用网络字节序(大端)
+ * TCP是字节流, 一次read可能读到半个帧或多个帧, 必须依靠长度头才能正确切分消息
+ */
+public final class FrameCodec {
+    //帧头长度: 4字节长度 + 1字节类型
+    public static final int HEADER_LENGTH = 5;
+    //默认允许的最大payload, 防止恶意的长度头让服务器分配过大的内存
+    public static final int DEFAULT_MAX_PAYLOAD = 1024 * 1024;
+
+    //普通文本消息, payload为UTF-8编码的字符串
+    public static final byte TEXT = 1;
+    //开始分享文件, payload为8字节的文件大小 + UTF-8编码的文件名; 之后是若干个FILE_CHUNK, 内容合计等于文件大小时结束
+    public static final byte FILE_BEGIN = 2;
+    //文件内容的一段, payload为原始字节, 长度不超过FILE_CHUNK_SIZE
+    public static final byte FILE_CHUNK = 3;
+    //发送文件时每个FILE_CHUNK的最大长度, 不超过DEFAULT_MAX_PAYLOAD, 接收方不需要调整解码器的上限;
+    //减去帧头后整个帧正好是256KB, 解码器拼接它时使用BufferPool的256KB等级而不是1MB等级
+    public static final int FILE_CHUNK_SIZE = 256 * 1024 - HEADER_LENGTH;
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private FrameCodec(){
+    }
+
+    /**
+     * 向dst写入帧头
+     * @param dst
+     * @param type
+     * @param payloadLength
+     */
+    public static void writeHeader(ByteBuffer dst, byte type, int payloadLength){
+        dst.putInt(payloadLength);
+        dst.put(type);
+    }
+
+    /**
+     * 把payload编码成一个完整的帧, 返回的buffer已经flip, 可以直接写入通道
+     * @param type
+     * @param payload
+     * @return
+     */
+    public static ByteBuffer encode(byte type, byte[] payload){
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        writeHeader(frame, type, payload.length);
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * 把前缀和payload拼接成一个帧, 用于服务器转发: 发送者名字的前缀在连接建立时编码一次, payload保持原始字节, 不做解码再编码
+     * @param type
+     * @param prefix
+     * @param payload 不改变它的position
+     * @return
+     */
+    public static ByteBuffer encode(byte type, byte[] prefix, ByteBuffer payload){
+        int length = prefix.length + payload.remaining();
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + length);
+        writeHeader(frame, type, length);
+        frame.put(prefix);
+        frame.put(payload.duplicate());
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * 与encode(type, prefix, payload)相同, 但帧写入池化的直接缓冲区, 调用方负责release()
+     * @param pool
+     * @param type
+     * @param prefix
+     * @param payload 不改变它的position
+     * @return buffer()已flip, 可以直接写入通道
+     */
+    public static PooledBuffer encode(BufferPool pool, byte type, byte[] prefix, ByteBuffer payload){
+        int length = prefix.length + payload.remaining();
+        PooledBuffer frame = pool.allocate(HEADER_LENGTH + length);
+        ByteBuffer buffer = frame.buffer();
+        writeHeader(buffer, type, length);
+        buffer.put(prefix);
+        buffer.put(payload.duplicate());
+        buffer.flip();
+        return frame;
+    }
+
+    public static PooledBuffer encode(BufferPool pool, byte type, String text){
+        return encode(pool, type, text.getBytes(UTF_8), EMPTY);
+    }
+
+    public static ByteBuffer encode(byte type, String text){
+        return encode(type, text.getBytes(UTF_8));
+    }
+
+    /**
+     * 把文本消息编码成帧
+     * @param text
+     * @return
+     */
+    public static ByteBuffer text(String text){
+        return encode(TEXT, text);
+    }
+
+    /**
+     * 编码FILE_BEGIN帧
+     * @param pool
+     * @param size 文件大小
+     * @param name 文件名
+     * @return buffer()已flip, 调用方负责release()
+     */
+    public static PooledBuffer fileBegin(BufferPool pool, long size, String name){
+        byte[] bytes = name.getBytes(UTF_8);
+        PooledBuffer frame = pool.allocate(HEADER_LENGTH + 8 + bytes.length);
+        ByteBuffer buffer = frame.buffer();
+        writeHeader(buffer, FILE_BEGIN, 8 + bytes.length);
+        buffer.putLong(size);
+        buffer.put(bytes);
+        buffer.flip();
+        return frame;
+    }
+
+    /**
+     * FILE_BEGIN帧中的文件大小, 不改变payload的position
+     * @param payload
+     * @return payload不足8字节时返回-1
+     */
+    public static long fileSize(ByteBuffer payload){
+        return payload.remaining() < 8 ? -1 : payload.getLong(payload.position());
+    }
+
+    /**
+     * FILE_BEGIN帧中的文件名, 不改变payload的position
+     * @param payload
+     * @return
+     */
+    public static String fileName(ByteBuffer payload){
+        ByteBuffer name = payload.duplicate();
+        name.position(name.position() + Math.min(8, name.remaining()));
+        return String.valueOf(UTF_8.decode(name));
+    }
+
+    /**
+     * 比较payload与给定字节是否相同, 不改变payload的position; 用于在不解码的情况下识别"quit"等命令
+     * @param payload
+     * @param bytes
+     * @return
+     */
+    public static boolean contentEquals(ByteBuffer payload, byte[] bytes){
+        if(payload.remaining() != bytes.length){
+            return false;
+        }
+        int position = payload.position();
+        for(int i = 0; i < bytes.length; i++){
+            if(payload.get(position + i) != bytes[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把payload按UTF-8解码成字符串, 不改变payload的position
+     * @param payload
+     * @return
+     */
+    public static String decodeText(ByteBuffer payload){
+        return String.valueOf(UTF_8.decode(payload.duplicate()));
+    }
+}
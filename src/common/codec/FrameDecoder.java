@@ -0,0 +1,174 @@
+package common.codec;
+
+import common.buffer.BufferPool;
+import common.buffer.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 增量式帧解码器, 每个连接一个实例(有状态, 非线程安全)
+ * 读缓冲区中完整的帧直接以slice的形式交给FrameHandler, 不做复制;
+ * 只有跨越两次read的残缺帧才会被复制到内部的cumulation缓冲区中, 等后续数据到齐后再交付
+ * cumulation缓冲区从BufferPool借用, 帧交付后立即归还; 连接关闭时需要调用reset()
+ * handler在回调中关闭连接(调用reset())时, 本次decode()立即停止, in中剩余的数据被丢弃
+ */
+public class FrameDecoder {
+    private static final int INITIAL_CUMULATION = 256;
+
+    private final int maxPayload;
+    private final BufferPool pool;
+    //残缺帧的暂存区, 写模式; 为null表示当前没有残缺帧
+    private PooledBuffer cumulation;
+    //reset()之后为true, 不再交付帧, 也不再借用cumulation
+    private boolean closed;
+
+    public FrameDecoder(){
+        this(FrameCodec.DEFAULT_MAX_PAYLOAD);
+    }
+
+    public FrameDecoder(int maxPayload){
+        this(maxPayload, BufferPool.DEFAULT);
+    }
+
+    public FrameDecoder(int maxPayload, BufferPool pool){
+        this.maxPayload = maxPayload;
+        this.pool = pool;
+    }
+
+    /**
+     * 解析in中的所有数据, 每得到一个完整的帧回调一次handler; 返回时in中的数据已全部被消费(position == limit)
+     * @param in 读模式的缓冲区(已flip)
+     * @param handler
+     * @throws IOException 帧长度非法时抛出, 调用方应关闭连接
+     */
+    public void decode(ByteBuffer in, FrameHandler handler) throws IOException {
+        //先把上次剩下的残缺帧补齐
+        if(cumulation != null && !closed && !fillCumulation(in, handler)){
+            return;
+        }
+        if(closed){
+            in.position(in.limit());
+            return;
+        }
+        //in中完整的帧直接切片交付
+        while (in.remaining() >= FrameCodec.HEADER_LENGTH){
+            int start = in.position();
+            int length = checkLength(in.getInt(start));
+            if(in.remaining() < FrameCodec.HEADER_LENGTH + length){
+                break;
+            }
+            byte type = in.get(start + 4);
+            int payloadStart = start + FrameCodec.HEADER_LENGTH;
+            ByteBuffer payload = in.duplicate();
+            payload.position(payloadStart).limit(payloadStart + length);
+            in.position(payloadStart + length);
+            handler.onFrame(type, payload.slice());
+            if(closed){
+                in.position(in.limit());
+                return;
+            }
+        }
+        //剩余的残缺帧复制到cumulation中
+        if(in.hasRemaining()){
+            int capacity = INITIAL_CUMULATION;
+            if(in.remaining() >= FrameCodec.HEADER_LENGTH){
+                capacity = FrameCodec.HEADER_LENGTH + in.getInt(in.position());
+            }
+            ensureCapacity(Math.max(capacity, in.remaining()));
+            cumulation.buffer().put(in);
+        }
+    }
+
+    /**
+     * 从in中取数据补齐cumulation中的残缺帧
+     * @return cumulation中的帧已交付、可以继续解析in时返回true; in已耗尽但帧仍不完整时返回false
+     */
+    private boolean fillCumulation(ByteBuffer in, FrameHandler handler) throws IOException {
+        ByteBuffer buffer = cumulation.buffer();
+        //帧头还不完整
+        if(buffer.position() < FrameCodec.HEADER_LENGTH){
+            transfer(in, buffer, FrameCodec.HEADER_LENGTH - buffer.position());
+            if(buffer.position() < FrameCodec.HEADER_LENGTH){
+                return false;
+            }
+        }
+        int length = checkLength(buffer.getInt(0));
+        int frameLength = FrameCodec.HEADER_LENGTH + length;
+        ensureCapacity(frameLength);
+        buffer = cumulation.buffer();
+        transfer(in, buffer, frameLength - buffer.position());
+        if(buffer.position() < frameLength){
+            return false;
+        }
+        PooledBuffer frame = cumulation;
+        cumulation = null;
+        try {
+            buffer.flip();
+            byte type = buffer.get(4);
+            buffer.position(FrameCodec.HEADER_LENGTH);
+            handler.onFrame(type, buffer.slice());
+        } finally {
+            frame.release();
+        }
+        return true;
+    }
+
+    private int checkLength(int length) throws IOException {
+        if(length < 0 || length > maxPayload){
+            throw new IOException("非法的帧长度: " + length + ", 最大允许" + maxPayload);
+        }
+        return length;
+    }
+
+    private static void transfer(ByteBuffer src, ByteBuffer dst, int max){
+        int n = Math.min(src.remaining(), max);
+        if(n <= 0){
+            return;
+        }
+        ByteBuffer part = src.duplicate();
+        part.limit(part.position() + n);
+        dst.put(part);
+        src.position(src.position() + n);
+    }
+
+    /**
+     * 保证cumulation至少能容纳capacity字节, 不够时从池中换一个更大的缓冲区
+     * @param capacity
+     */
+    private void ensureCapacity(int capacity){
+        if(cumulation == null){
+            cumulation = pool.allocate(capacity);
+            return;
+        }
+        ByteBuffer buffer = cumulation.buffer();
+        if(buffer.capacity() >= capacity){
+            buffer.limit(buffer.capacity());
+            return;
+        }
+        PooledBuffer bigger = pool.allocate(capacity);
+        buffer.flip();
+        bigger.buffer().put(buffer);
+        cumulation.release();
+        cumulation = bigger;
+    }
+
+    /**
+     * 当前是否有尚未到齐的残缺帧
+     * @return
+     */
+    public boolean hasPartialFrame(){
+        return cumulation != null && cumulation.buffer().position() > 0;
+    }
+
+    /**
+     * 连接关闭时释放残缺帧, 把缓冲区归还到池中; 之后decode()只丢弃数据, 可以在handler的回调中调用
+     */
+    public void reset(){
+        closed = true;
+        if(cumulation != null){
+            cumulation.release();
+            cumulation = null;
+        }
+    }
+}
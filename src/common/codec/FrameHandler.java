@@ -0,0 +1,16 @@
+package common.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * FrameDecoder每解析出一个完整的帧就回调一次
+ */
+public interface FrameHandler {
+    /**
+     * @param type 帧类型, 见FrameCodec中的常量
+     * @param payload 帧内容; 可能直接指向读缓冲区, 只在本次回调期间有效, 需要保留时调用方自行复制
+     * @throws IOException
+     */
+    void onFrame(byte type, ByteBuffer payload) throws IOException;
+}
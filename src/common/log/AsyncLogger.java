@@ -0,0 +1,310 @@
+package common.log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 服务器使用的异步日志: I/O线程只把日志内容复制进一个有界无锁环形缓冲区, 由后台线程负责写到标准输出
+ * System.out.println是同步的, 标准输出是慢速管道时还会阻塞, 不能出现在事件循环里
+ * <p>
+ * 环形缓冲区的每个槽位预先分配好字节数组, 记录日志时不产生垃圾; 超出单条上限的内容会被截断
+ * 缓冲区满时按照DropPolicy处理: DROP丢弃本条日志并计数, BLOCK等待后台线程腾出空间
+ * <p>
+ * 通过系统属性配置:
+ * chatroom.log.level(DEBUG/INFO/WARN/ERROR/OFF, 默认INFO),
+ * chatroom.log.dropPolicy(DROP/BLOCK, 默认DROP),
+ * chatroom.log.capacity(槽位数, 默认4096), chatroom.log.maxRecord(单条最大字节数, 默认512)
+ */
+public final class AsyncLogger implements Runnable {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    public enum DropPolicy { DROP, BLOCK }
+
+    private static final byte[] NEWLINE = {'\n'};
+    //后台线程空闲时的休眠时间; 生产者从不唤醒消费者, 记录日志的开销因此是固定的
+    private static final long IDLE_PARK_NANOS = 1000000L;
+
+    private static volatile AsyncLogger instance;
+
+    private volatile Level level;
+    private final DropPolicy dropPolicy;
+
+    //Vyukov有界队列: sequences[i] == pos表示槽位可写, == pos + 1表示已写好可读
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final byte[][] data;
+    private final int[] lengths;
+    private final Level[] levels;
+    private final long[] times;
+    private final AtomicLong tail = new AtomicLong();
+    //只由后台线程访问
+    private long head;
+
+    private final AtomicLong dropped = new AtomicLong();
+    //后台线程上次报告时的丢弃条数
+    private long reportedDropped;
+    private final OutputStream out;
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS ");
+    private final Date date = new Date();
+
+    public AsyncLogger(Level level, DropPolicy dropPolicy, int capacity, int maxRecord, OutputStream out){
+        if(Integer.bitCount(capacity) != 1){
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.level = level;
+        this.dropPolicy = dropPolicy;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.data = new byte[capacity][maxRecord];
+        this.lengths = new int[capacity];
+        this.levels = new Level[capacity];
+        this.times = new long[capacity];
+        for(int i = 0; i < capacity; i++){
+            sequences.set(i, i);
+        }
+        this.out = out;
+    }
+
+    /**
+     * 进程内共用的日志实例, 第一次使用时按系统属性创建并启动后台线程
+     * @return
+     */
+    public static AsyncLogger get(){
+        AsyncLogger logger = instance;
+        if(logger == null){
+            synchronized (AsyncLogger.class){
+                logger = instance;
+                if(logger == null){
+                    logger = new AsyncLogger(
+                            Level.valueOf(System.getProperty("chatroom.log.level", "INFO")),
+                            DropPolicy.valueOf(System.getProperty("chatroom.log.dropPolicy", "DROP")),
+                            Integer.getInteger("chatroom.log.capacity", 4096),
+                            Integer.getInteger("chatroom.log.maxRecord", 512),
+                            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024));
+                    logger.start();
+                    instance = logger;
+                }
+            }
+        }
+        return logger;
+    }
+
+    public void start(){
+        Thread thread = new Thread(this, "chatroom-logger");
+        thread.setDaemon(true);
+        thread.start();
+        //退出前把缓冲区中剩余的日志写完
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "chatroom-logger-shutdown"));
+    }
+
+    public void setLevel(Level level){
+        this.level = level;
+    }
+
+    public Level getLevel(){
+        return level;
+    }
+
+    public boolean isEnabled(Level target){
+        return target.ordinal() >= level.ordinal() && target != Level.OFF;
+    }
+
+    /**
+     * 因缓冲区已满而丢弃的日志条数
+     * @return
+     */
+    public long dropped(){
+        return dropped.get();
+    }
+
+    public void debug(String msg){
+        log(Level.DEBUG, msg, null, null);
+    }
+
+    /**
+     * 与info(byte[], ByteBuffer)相同, 级别为DEBUG; 用于每条消息都会记录的日志, 默认级别下直接返回
+     * @param prefix
+     * @param payload 不改变它的position
+     */
+    public void debug(byte[] prefix, ByteBuffer payload){
+        log(Level.DEBUG, null, prefix, payload);
+    }
+
+    public void info(String msg){
+        log(Level.INFO, msg, null, null);
+    }
+
+    /**
+     * 记录"前缀 + UTF-8字节"形式的日志, payload直接按字节复制, 不在I/O线程上解码
+     * @param prefix
+     * @param payload 不改变它的position
+     */
+    public void info(String prefix, ByteBuffer payload){
+        log(Level.INFO, prefix, null, payload);
+    }
+
+    /**
+     * 与info(String, ByteBuffer)相同, 前缀也是已编码好的UTF-8字节(例如连接建立时生成的"客户端[端口]:")
+     * @param prefix
+     * @param payload 不改变它的position
+     */
+    public void info(byte[] prefix, ByteBuffer payload){
+        log(Level.INFO, null, prefix, payload);
+    }
+
+    public void warn(String msg){
+        log(Level.WARN, msg, null, null);
+    }
+
+    public void error(String msg){
+        log(Level.ERROR, msg, null, null);
+    }
+
+    public void error(String msg, Throwable t){
+        if(!isEnabled(Level.ERROR)){
+            return;
+        }
+        StringWriter writer = new StringWriter();
+        t.printStackTrace(new PrintWriter(writer));
+        log(Level.ERROR, msg + System.lineSeparator() + writer, null, null);
+    }
+
+    private void log(Level target, String msg, byte[] prefix, ByteBuffer payload){
+        if(!isEnabled(target)){
+            return;
+        }
+        long pos;
+        int index;
+        for(;;){
+            pos = tail.get();
+            index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if(diff == 0){
+                if(tail.compareAndSet(pos, pos + 1)){
+                    break;
+                }
+            } else if(diff < 0){
+                //缓冲区已满
+                if(dropPolicy == DropPolicy.DROP){
+                    dropped.incrementAndGet();
+                    return;
+                }
+                Thread.yield();
+            }
+        }
+        byte[] slot = data[index];
+        int length = 0;
+        if(msg != null){
+            length = putUtf8(slot, 0, msg);
+        }
+        if(prefix != null){
+            int n = Math.min(prefix.length, slot.length - length);
+            System.arraycopy(prefix, 0, slot, length, n);
+            length += n;
+        }
+        if(payload != null){
+            int n = Math.min(payload.remaining(), slot.length - length);
+            //批量复制后恢复position; payload只由调用线程使用, 不创建duplicate()以免产生垃圾
+            int position = payload.position();
+            payload.get(slot, length, n);
+            payload.position(position);
+            length += n;
+        }
+        lengths[index] = length;
+        levels[index] = target;
+        times[index] = System.currentTimeMillis();
+        //发布: 后台线程看到sequence变化后才会读取槽位内容
+        sequences.set(index, pos + 1);
+    }
+
+    /**
+     * 把字符串按UTF-8写入dst, 空间不足时在字符边界处截断; 不分配内存
+     * @return 写入后的偏移
+     */
+    private static int putUtf8(byte[] dst, int offset, String s){
+        int limit = dst.length;
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(c < 0x80){
+                if(offset + 1 > limit) break;
+                dst[offset++] = (byte) c;
+            } else if(c < 0x800){
+                if(offset + 2 > limit) break;
+                dst[offset++] = (byte) (0xC0 | (c >> 6));
+                dst[offset++] = (byte) (0x80 | (c & 0x3F));
+            } else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))){
+                if(offset + 4 > limit) break;
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst[offset++] = (byte) (0xF0 | (cp >> 18));
+                dst[offset++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                dst[offset++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                dst[offset++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                if(offset + 3 > limit) break;
+                dst[offset++] = (byte) (0xE0 | (c >> 12));
+                dst[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dst[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return offset;
+    }
+
+    @Override
+    public void run() {
+        while (true){
+            if(!drain()){
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * 写出缓冲区中所有已发布的日志
+     * @return 是否写出了至少一条
+     */
+    private synchronized boolean drain(){
+        boolean wrote = false;
+        for(;;){
+            int index = (int) (head & mask);
+            if(sequences.get(index) != head + 1){
+                break;
+            }
+            try {
+                date.setTime(times[index]);
+                out.write(timeFormat.format(date).getBytes());
+                out.write(levels[index].name().getBytes());
+                out.write(' ');
+                out.write(data[index], 0, lengths[index]);
+                out.write(NEWLINE);
+            } catch (IOException e){
+                //标准输出不可用时无处可写, 丢弃即可
+            }
+            //归还槽位
+            sequences.set(index, head + mask + 1);
+            head++;
+            wrote = true;
+        }
+        try {
+            long current = dropped.get();
+            if(current != reportedDropped){
+                out.write(("WARN 日志缓冲区已满, 累计丢弃" + current + "条日志").getBytes(StandardCharsets.UTF_8));
+                out.write(NEWLINE);
+                reportedDropped = current;
+                wrote = true;
+            }
+            if(wrote){
+                out.flush();
+            }
+        } catch (IOException e){
+            //同上
+        }
+        return wrote;
+    }
+}
@@ -0,0 +1,118 @@
+package common.metrics;
+
+/**
+ * 对数-线性分桶的延迟直方图(纳秒), 记录时不分配内存, 相对误差约3%
+ * 每个2的幂区间再均分为32个子桶; 非线程安全, 每个线程使用自己的实例, 最后用add()合并
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    //最高记录到2^63纳秒
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public void record(long nanos){
+        if(nanos < 0){
+            nanos = 0;
+        }
+        counts[index(nanos)]++;
+        count++;
+        sum += nanos;
+        if(nanos < min){
+            min = nanos;
+        }
+        if(nanos > max){
+            max = nanos;
+        }
+    }
+
+    private static int index(long value){
+        if(value < SUB_BUCKETS){
+            return (int) value;
+        }
+        //value >>> shift落在[SUB_BUCKETS, 2 * SUB_BUCKETS)之间
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * 子桶的上界(包含), 作为该桶的代表值
+     */
+    private static long upperBound(int index){
+        if(index < SUB_BUCKETS){
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @param percentile 0到100之间, 例如99.9
+     * @return 不小于该百分比的样本所落入的桶的上界, 没有样本时返回0
+     */
+    public long percentile(double percentile){
+        if(count == 0){
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += counts[i];
+            if(seen >= target){
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long count(){
+        return count;
+    }
+
+    public double mean(){
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long min(){
+        return count == 0 ? 0 : min;
+    }
+
+    public long max(){
+        return max;
+    }
+
+    public void add(LatencyHistogram other){
+        for(int i = 0; i < BUCKETS; i++){
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset(){
+        java.util.Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * 以微秒为单位的摘要
+     * @return
+     */
+    public String summary(){
+        return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                count, mean() / 1000.0, percentile(50) / 1000.0, percentile(99) / 1000.0,
+                percentile(99.9) / 1000.0, max / 1000.0);
+    }
+}
@@ -0,0 +1,314 @@
+package common.session;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 以服务器分配的long编号为键的并发会话表, bio/nio/aio三种服务器共用
+ * 键直接存放在long数组中(开放寻址, 线性探测), 查找和插入都不会装箱产生Integer/Long垃圾, 可以容纳上百万个会话
+ * 按编号的哈希分成多个分段, 写操作只锁所在分段; get()和forEach()不加锁
+ * forEach()遍历的是调用时刻各分段的数组, 是弱一致的: 遍历期间加入的会话可能看不到, 刚移除的可能仍会被访问一次
+ * @param <V>
+ */
+public class SessionTable<V> {
+    private static final int DEFAULT_STRIPES = 64;
+    private static final int MIN_CAPACITY = 16;
+    //被删除的槽位, 探测时需要跳过而不能当作空位
+    private static final Object TOMBSTONE = new Object();
+
+    /**
+     * 遍历时的回调
+     * @param <V>
+     */
+    public interface Visitor<V> {
+        void visit(long id, V value);
+    }
+
+    private final Stripe<V>[] stripes;
+    private final int stripeShift;
+    //下一个分配的会话编号, 从1开始
+    private final AtomicLong nextId = new AtomicLong();
+
+    public SessionTable(){
+        this(MIN_CAPACITY * DEFAULT_STRIPES);
+    }
+
+    public SessionTable(int expectedSize){
+        this(expectedSize, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param expectedSize 预计的会话数量, 用于确定初始容量
+     * @param stripes 分段数, 向上取为2的幂
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SessionTable(int expectedSize, int stripes){
+        if(expectedSize < 0 || stripes < 1){
+            throw new IllegalArgumentException("expectedSize: " + expectedSize + ", stripes: " + stripes);
+        }
+        int count = powerOfTwo(stripes);
+        this.stripes = new Stripe[count];
+        this.stripeShift = 64 - Integer.numberOfTrailingZeros(count);
+        int perStripe = powerOfTwo(Math.max(MIN_CAPACITY, expectedSize / count * 2));
+        for(int i = 0; i < count; i++){
+            this.stripes[i] = new Stripe<>(perStripe);
+        }
+    }
+
+    private static int powerOfTwo(int n){
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * 分配一个新的会话编号, 在本表中唯一且不会重复使用
+     * @return
+     */
+    public long newId(){
+        return nextId.incrementAndGet();
+    }
+
+    /**
+     * 64位混合函数(MurmurHash3的finalizer), 连续的编号也能均匀分布
+     */
+    private static long mix(long id){
+        long h = id;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private Stripe<V> stripe(long hash){
+        //高位选分段, 低位选槽位, 两者互不相关
+        return stripeShift == 64 ? stripes[0] : stripes[(int) (hash >>> stripeShift)];
+    }
+
+    public V get(long id){
+        long hash = mix(id);
+        return stripe(hash).get(id, hash);
+    }
+
+    public boolean containsKey(long id){
+        return get(id) != null;
+    }
+
+    /**
+     * @param id
+     * @param value 不能为null
+     * @return 之前的值, 没有时返回null
+     */
+    public V put(long id, V value){
+        if(value == null){
+            throw new NullPointerException("value");
+        }
+        long hash = mix(id);
+        return stripe(hash).put(id, hash, value, false);
+    }
+
+    public V putIfAbsent(long id, V value){
+        if(value == null){
+            throw new NullPointerException("value");
+        }
+        long hash = mix(id);
+        return stripe(hash).put(id, hash, value, true);
+    }
+
+    /**
+     * @param id
+     * @return 被删除的值, 没有时返回null
+     */
+    public V remove(long id){
+        long hash = mix(id);
+        return stripe(hash).remove(id, hash, null);
+    }
+
+    /**
+     * 只有当前值是value时才删除, 用于避免误删同编号的新会话
+     * @param id
+     * @param value
+     * @return
+     */
+    public boolean remove(long id, V value){
+        long hash = mix(id);
+        return stripe(hash).remove(id, hash, value) != null;
+    }
+
+    public int size(){
+        int total = 0;
+        for(Stripe<V> stripe : stripes){
+            total += stripe.size;
+        }
+        return total;
+    }
+
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    /**
+     * 不加锁地遍历所有会话, 弱一致; 回调中可以修改本表
+     * @param visitor
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<? super V> visitor){
+        for(Stripe<V> stripe : stripes){
+            Table table = stripe.table;
+            for(int i = 0; i < table.capacity; i++){
+                Object value = table.values.get(i);
+                if(value != null && value != TOMBSTONE){
+                    visitor.visit(table.keys.get(i), (V) value);
+                }
+            }
+        }
+    }
+
+    public void clear(){
+        for(Stripe<V> stripe : stripes){
+            stripe.clear();
+        }
+    }
+
+    /**
+     * 一个分段的哈希数组; 扩容时整体替换, 旧数组上正在进行的读和遍历不受影响
+     */
+    private static final class Table {
+        final int capacity;
+        final int mask;
+        final AtomicLongArray keys;
+        //null为空位, TOMBSTONE为已删除; 先写key再用volatile写入value, 读到value即可看到对应的key
+        final AtomicReferenceArray<Object> values;
+
+        Table(int capacity){
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.keys = new AtomicLongArray(capacity);
+            this.values = new AtomicReferenceArray<>(capacity);
+        }
+    }
+
+    private static final class Stripe<V> {
+        volatile Table table;
+        volatile int size;
+        //已删除但尚未清理的槽位数, 和size一起决定何时重建
+        int tombstones;
+
+        Stripe(int capacity){
+            this.table = new Table(capacity);
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(long id, long hash){
+            Table t = table;
+            int i = (int) hash & t.mask;
+            for(int probes = 0; probes < t.capacity; probes++){
+                Object value = t.values.get(i);
+                if(value == null){
+                    return null;
+                }
+                if(value != TOMBSTONE && t.keys.get(i) == id){
+                    //槽位可能在读key期间被删除并重用, 再次确认value没有变化
+                    if(t.values.get(i) == value){
+                        return (V) value;
+                    }
+                    return get(id, hash);
+                }
+                i = (i + 1) & t.mask;
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put(long id, long hash, V value, boolean onlyIfAbsent){
+            Table t = table;
+            int i = (int) hash & t.mask;
+            int firstTombstone = -1;
+            for(int probes = 0; probes < t.capacity; probes++){
+                Object current = t.values.get(i);
+                if(current == null){
+                    break;
+                }
+                if(current == TOMBSTONE){
+                    if(firstTombstone < 0){
+                        firstTombstone = i;
+                    }
+                } else if(t.keys.get(i) == id){
+                    if(!onlyIfAbsent){
+                        t.values.set(i, value);
+                    }
+                    return (V) current;
+                }
+                i = (i + 1) & t.mask;
+            }
+            if(firstTombstone >= 0){
+                i = firstTombstone;
+                tombstones--;
+            }
+            t.keys.set(i, id);
+            t.values.set(i, value);
+            size++;
+            //空位和墓碑合计超过一半时重建, 保证探测序列足够短并且一定能遇到空位
+            if((size + tombstones) * 2 > t.capacity){
+                rebuild();
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V remove(long id, long hash, Object expected){
+            Table t = table;
+            int i = (int) hash & t.mask;
+            for(int probes = 0; probes < t.capacity; probes++){
+                Object current = t.values.get(i);
+                if(current == null){
+                    return null;
+                }
+                if(current != TOMBSTONE && t.keys.get(i) == id){
+                    if(expected != null && current != expected){
+                        return null;
+                    }
+                    t.values.set(i, TOMBSTONE);
+                    size--;
+                    tombstones++;
+                    if(tombstones > t.capacity / 4){
+                        rebuild();
+                    }
+                    return (V) current;
+                }
+                i = (i + 1) & t.mask;
+            }
+            return null;
+        }
+
+        /**
+         * 按当前元素数重新分配数组并去掉墓碑; 元素数为容量的1/4左右, 既能增长也能收缩
+         */
+        private void rebuild(){
+            Table old = table;
+            int capacity = powerOfTwo(Math.max(MIN_CAPACITY, size * 4));
+            Table t = new Table(capacity);
+            for(int j = 0; j < old.capacity; j++){
+                Object value = old.values.get(j);
+                if(value != null && value != TOMBSTONE){
+                    long id = old.keys.get(j);
+                    int i = (int) mix(id) & t.mask;
+                    while (t.values.get(i) != null){
+                        i = (i + 1) & t.mask;
+                    }
+                    t.keys.set(i, id);
+                    t.values.set(i, value);
+                }
+            }
+            tombstones = 0;
+            table = t;
+        }
+
+        synchronized void clear(){
+            table = new Table(MIN_CAPACITY);
+            size = 0;
+            tombstones = 0;
+        }
+    }
+}
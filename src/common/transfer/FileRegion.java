@@ -0,0 +1,103 @@
+package common.transfer;
+
+import common.buffer.OutboundRegion;
+import common.codec.FrameCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 把SharedFile的内容按FILE_CHUNK帧发给一个接收者: 每帧先写5字节的帧头, 再用FileTransfer把文件内容transferTo到socket,
+ * 文件内容不经过堆, 也不占用待发送队列的字节上限
+ * 持有SharedFile的一个引用, release()时归还; 非线程安全, 只在连接所属的事件循环线程中使用
+ */
+public class FileRegion implements OutboundRegion {
+    private final SharedFile file;
+    private final int chunkSize;
+    private final ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH);
+    //下一帧的起始位置
+    private long position;
+    //正在发送的帧, 帧头写完之前也不为null
+    private FileTransfer chunk;
+    private boolean released;
+
+    public FileRegion(SharedFile file){
+        this(file, FrameCodec.FILE_CHUNK_SIZE);
+    }
+
+    /**
+     * @param file 调用方为本对象retain()过的文件
+     * @param chunkSize 每个FILE_CHUNK帧的最大长度
+     */
+    public FileRegion(SharedFile file, int chunkSize){
+        if(chunkSize <= 0){
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        this.file = file;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public long writeTo(WritableByteChannel channel, long maxBytes) throws IOException {
+        long written = 0;
+        while (written < maxBytes && !isDone()){
+            if(chunk == null){
+                int length = (int) Math.min(chunkSize, file.size() - position);
+                header.clear();
+                FrameCodec.writeHeader(header, FrameCodec.FILE_CHUNK, length);
+                header.flip();
+                chunk = new FileTransfer(file.channel(), position, length, length, null);
+                position += length;
+            }
+            if(header.hasRemaining()){
+                written += channel.write(header);
+                if(header.hasRemaining()){
+                    break;
+                }
+            }
+            long n = chunk.transferTo(channel);
+            written += n;
+            if(!chunk.isDone()){
+                if(n == 0){
+                    //发送缓冲区已满, 等待下一次OP_WRITE
+                    break;
+                }
+                continue;
+            }
+            chunk = null;
+        }
+        return written;
+    }
+
+    @Override
+    public boolean isDone() {
+        return chunk == null && position >= file.size();
+    }
+
+    /**
+     * 下一帧还没有开始写(帧头一个字节都没写出)时在边界上
+     */
+    @Override
+    public boolean atBoundary() {
+        return chunk == null || header.position() == 0;
+    }
+
+    @Override
+    public long remaining() {
+        return file.size() - position + (chunk == null ? 0 : chunk.remaining());
+    }
+
+    @Override
+    public void release() {
+        if(!released){
+            released = true;
+            file.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileRegion[" + file.name() + ", " + (file.size() - remaining()) + "/" + file.size() + "]";
+    }
+}
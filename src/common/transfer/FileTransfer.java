@@ -0,0 +1,182 @@
+package common.transfer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 把文件的一个区间[start, end)用FileChannel.transferTo()发送到目标通道, 数据由内核直接复制, 不经过堆
+ * 每次调用最多传输chunkSize字节并从当前位置继续: transferTo()可能只传输一部分(非阻塞socket的发送缓冲区满了,
+ * 或者单次调用的上限约为2GB), 位置必须按实际传输的字节数前进, 不能每次从头开始
+ * 对象记录当前位置, 传输中断后可以用position()作为起点创建新的FileTransfer续传
+ * 非线程安全, 同一时刻只能有一个线程调用transferTo()
+ */
+public class FileTransfer {
+    //每次transferTo()最多传输的字节数, 让进度回调足够频繁, 也让事件循环不会被一个大文件长时间占用
+    public static final long DEFAULT_CHUNK = 8 * 1024 * 1024;
+
+    /**
+     * 进度回调, 每次传输了数据之后调用
+     */
+    public interface Listener {
+        void onProgress(FileTransfer transfer);
+    }
+
+    private final FileChannel source;
+    private final long start;
+    private final long end;
+    private final long chunkSize;
+    private final Listener listener;
+    private long position;
+    private long calls;
+    //第一次和最后一次transferTo()的时间, 用于统计吞吐量
+    private long startNanos;
+    private long lastNanos;
+
+    public FileTransfer(FileChannel source, long position, long count){
+        this(source, position, count, DEFAULT_CHUNK, null);
+    }
+
+    /**
+     * @param source 源文件通道, 由调用方负责关闭
+     * @param position 起始位置, 续传时为上次中断的位置
+     * @param count 要传输的字节数
+     * @param chunkSize 每次transferTo()最多传输的字节数
+     * @param listener 进度回调, 可以为null
+     */
+    public FileTransfer(FileChannel source, long position, long count, long chunkSize, Listener listener){
+        if(position < 0 || count < 0 || chunkSize <= 0){
+            throw new IllegalArgumentException("position: " + position + ", count: " + count + ", chunkSize: " + chunkSize);
+        }
+        this.source = source;
+        this.start = position;
+        this.end = position + count;
+        this.chunkSize = chunkSize;
+        this.listener = listener;
+        this.position = position;
+    }
+
+    /**
+     * 从当前位置传输最多chunkSize字节
+     * 目标是非阻塞通道时可能返回0(发送缓冲区已满), 调用方应等待通道可写后再调用
+     * @param target
+     * @return 本次传输的字节数
+     * @throws IOException 源文件在传输过程中变短时抛出EOFException
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        if(position >= end){
+            return 0;
+        }
+        long now = System.nanoTime();
+        if(calls == 0){
+            startNanos = now;
+        }
+        long n = source.transferTo(position, Math.min(chunkSize, end - position), target);
+        calls++;
+        lastNanos = System.nanoTime();
+        if(n == 0 && position >= source.size()){
+            throw new EOFException("源文件在传输过程中变短: " + position + "/" + end);
+        }
+        if(n > 0){
+            position += n;
+            if(listener != null){
+                listener.onProgress(this);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 传输剩余的全部数据, 只能用于阻塞的目标通道
+     * @param target
+     * @throws IOException
+     */
+    public void transferFully(WritableByteChannel target) throws IOException {
+        while (position < end){
+            transferTo(target);
+        }
+    }
+
+    public boolean isDone(){
+        return position >= end;
+    }
+
+    /**
+     * @return 下一个要传输的字节在源文件中的位置, 传输中断后从这里续传
+     */
+    public long position(){
+        return position;
+    }
+
+    public long start(){
+        return start;
+    }
+
+    public long end(){
+        return end;
+    }
+
+    public long remaining(){
+        return end - position;
+    }
+
+    /**
+     * @return 本次传输(从start开始)已经传输的字节数
+     */
+    public long transferred(){
+        return position - start;
+    }
+
+    public TransferStats stats(){
+        return new TransferStats(transferred(), calls == 0 ? 0 : lastNanos - startNanos, calls);
+    }
+
+    /**
+     * 复制整个文件, 目标文件已存在时覆盖
+     * @param source
+     * @param target
+     * @param listener 可以为null
+     * @return
+     * @throws IOException
+     */
+    public static TransferStats copy(File source, File target, Listener listener) throws IOException {
+        return copy(source, target, false, DEFAULT_CHUNK, listener);
+    }
+
+    /**
+     * 从目标文件的当前长度继续复制, 用于上次复制被中断的情况; 目标文件比源文件长时重新复制
+     * 只按长度判断, 不校验已有的内容
+     * @param source
+     * @param target
+     * @param listener 可以为null
+     * @return 续传部分的统计
+     * @throws IOException
+     */
+    public static TransferStats resume(File source, File target, Listener listener) throws IOException {
+        return copy(source, target, true, DEFAULT_CHUNK, listener);
+    }
+
+    public static TransferStats copy(File source, File target, boolean resume, long chunkSize, Listener listener) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+            long size = in.size();
+            long offset = resume ? out.size() : 0;
+            if(offset > size){
+                offset = 0;
+            }
+            out.truncate(offset);
+            out.position(offset);
+            FileTransfer transfer = new FileTransfer(in, offset, size - offset, chunkSize, listener);
+            transfer.transferFully(out);
+            return transfer.stats();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileTransfer[" + position + "/" + end + "]";
+    }
+}
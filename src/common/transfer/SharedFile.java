@@ -0,0 +1,130 @@
+package common.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 带引用计数的只读文件, 用于把同一个暂存文件发给多个接收者
+ * 打开时引用计数为1; 每个接收者的FileRegion持有一个引用, 发送完或连接断开时release(),
+ * 计数归零时关闭通道并删除文件. 所有接收者共用一个FileChannel, 通过positional transferTo读取, 互不影响
+ */
+public final class SharedFile {
+    private static final AtomicIntegerFieldUpdater<SharedFile> REF_CNT =
+            AtomicIntegerFieldUpdater.newUpdater(SharedFile.class, "refCnt");
+
+    private final File file;
+    private final String name;
+    private final FileChannel channel;
+    private final long size;
+    private final boolean deleteOnRelease;
+    //引用计数归零、文件被删除后执行, 可以为null
+    private final Runnable onRelease;
+    private volatile int refCnt = 1;
+
+    private SharedFile(File file, String name, FileChannel channel, boolean deleteOnRelease, Runnable onRelease) throws IOException {
+        this.file = file;
+        this.name = name;
+        this.channel = channel;
+        this.size = channel.size();
+        this.deleteOnRelease = deleteOnRelease;
+        this.onRelease = onRelease;
+    }
+
+    /**
+     * @param file 暂存文件
+     * @param name 展示给接收者的文件名
+     * @param deleteOnRelease 引用计数归零时是否删除文件
+     * @return
+     * @throws IOException
+     */
+    public static SharedFile open(File file, String name, boolean deleteOnRelease) throws IOException {
+        return open(file, name, deleteOnRelease, null);
+    }
+
+    /**
+     * @param file 暂存文件
+     * @param name 展示给接收者的文件名
+     * @param deleteOnRelease 引用计数归零时是否删除文件
+     * @param onRelease 引用计数归零时在最后一个release()的线程中执行, 例如归还暂存空间的额度; 打开失败时不会执行
+     * @return
+     * @throws IOException
+     */
+    public static SharedFile open(File file, String name, boolean deleteOnRelease, Runnable onRelease) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new SharedFile(file, name, channel, deleteOnRelease, onRelease);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public String name(){
+        return name;
+    }
+
+    /**
+     * @return 打开时的文件大小, 之后不再变化
+     */
+    public long size(){
+        return size;
+    }
+
+    public FileChannel channel(){
+        return channel;
+    }
+
+    public int refCnt(){
+        return refCnt;
+    }
+
+    public SharedFile retain(){
+        return retain(1);
+    }
+
+    public SharedFile retain(int increment){
+        for(;;){
+            int current = refCnt;
+            if(current <= 0){
+                throw new IllegalStateException("文件已被释放: " + file);
+            }
+            if(REF_CNT.compareAndSet(this, current, current + increment)){
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 引用计数减一, 归零时关闭通道并按需删除文件
+     * @return 本次调用是否真正释放了文件
+     */
+    public boolean release(){
+        int current = REF_CNT.decrementAndGet(this);
+        if(current < 0){
+            throw new IllegalStateException("文件被重复释放: " + file);
+        }
+        if(current > 0){
+            return false;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //只读通道, 忽略
+        }
+        if(deleteOnRelease && !file.delete() && file.exists()){
+            file.deleteOnExit();
+        }
+        if(onRelease != null){
+            onRelease.run();
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "SharedFile[" + name + ", " + size + "字节, refCnt=" + refCnt + "]";
+    }
+}
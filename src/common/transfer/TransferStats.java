@@ -0,0 +1,44 @@
+package common.transfer;
+
+/**
+ * 一次传输的统计快照: 本次传输的字节数、耗时和transferTo调用次数
+ * 从断点续传时只统计续传部分, 不包括之前已经传完的字节
+ */
+public class TransferStats {
+    private final long bytes;
+    private final long nanos;
+    private final long calls;
+
+    public TransferStats(long bytes, long nanos, long calls){
+        this.bytes = bytes;
+        this.nanos = nanos;
+        this.calls = calls;
+    }
+
+    public long bytes(){
+        return bytes;
+    }
+
+    /**
+     * @return 从第一次调用到最后一次调用结束的时间, 非阻塞传输中等待通道可写的时间也计算在内
+     */
+    public long nanos(){
+        return nanos;
+    }
+
+    public long calls(){
+        return calls;
+    }
+
+    /**
+     * @return 每秒传输的MB数, 1MB = 1024 * 1024字节; 尚未计时时为0
+     */
+    public double megabytesPerSecond(){
+        return nanos == 0 ? 0 : bytes * 1e9 / nanos / (1024 * 1024);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d字节, %.1fms, %d次调用, %.1fMB/s", bytes, nanos / 1e6, calls, megabytesPerSecond());
+    }
+}
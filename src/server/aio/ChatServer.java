@@ -1,49 +1,86 @@
 package server.aio;
 
+import common.buffer.BufferPool;
+import common.buffer.OutboundQueue;
+import common.buffer.PooledBuffer;
+import common.codec.FrameDecoder;
+import common.codec.FrameHandler;
+import common.log.AsyncLogger;
+import common.session.SessionTable;
+import server.core.ChatConnection;
+import server.core.ChatPipeline;
+import server.core.ChatTransport;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ChatServer {
-    private static final String LOCALHOST = "localhost";
-    private static final int DEFAULT_PORT = 8888;
-    private static final String QUIT = "quit";
+/**
+ * aio传输层: 所有连接的读写都是通道组线程上的回调, 聊天逻辑由ChatPipeline处理
+ */
+public class ChatServer implements ChatTransport {
     private static final int BUFFER = 1024;
-    private static final int THREADPOOL_SIZE = 8;
+    //stop()默认等待待发送数据写完的时间
+    private static final long DEFAULT_STOP_TIMEOUT_MILLIS = 5000;
+    //回调运行在通道组的线程上, 不能使用会阻塞的System.out
+    private static final AsyncLogger LOG = AsyncLogger.get();
 
+    private final ServerConfig config;
     private AsynchronousChannelGroup channelGroup;
     private AsynchronousServerSocketChannel serverChannel;
-    private List<ClientHandler> connectedClients;
-    private Charset charset = Charset.forName("UTF-8");
-    private int port;
+    //在线用户表, 以pipeline分配的会话编号为键: 转发时不加锁遍历, 通道组的各个线程可以并行转发;
+    //加入/离开只锁一个分段, 不像写时复制的列表那样每次都复制整个数组
+    private final SessionTable<ClientHandler> connectedClients = new SessionTable<>();
+    //start()时传入, 命名、日志、quit检测和转发都交给它
+    private volatile ChatPipeline pipeline;
+    //读缓冲区和转发的帧都从池中借用直接缓冲区
+    private final BufferPool pool = BufferPool.DEFAULT;
+    //所有连接共用的写完成回调
+    private final WriteHandler writeHandler = new WriteHandler();
+    //因待发送队列溢出而被断开的慢速客户端数量
+    private final AtomicLong slowClientsClosed = new AtomicLong();
+    //读缓冲区尚未归还的连接数, stop()关闭通道后等它归零再关闭通道组
+    private final AtomicInteger openReaders = new AtomicInteger();
+    //start()之后为true; stop()开始后为false, 不再接受新连接和转发新消息
+    private volatile boolean running;
+    //stop()完成后打开, await()在此等待
+    private final CountDownLatch terminated = new CountDownLatch(1);
 
     public ChatServer(){
-        this(DEFAULT_PORT);
+        this(new ServerConfig());
     }
 
     public ChatServer(int port){
-        this.port = port;
-        this.connectedClients = new ArrayList<>();
+        this(new ServerConfig().port(port));
     }
 
-    /**
-     * 当输入"quit"时表示客户退出
-     * @param msg
-     * @return
-     */
-    private boolean readyToQuit(String msg){
-        return QUIT.equals(msg);
+    public ChatServer(int port, long maxOutboundBytes){
+        this(new ServerConfig().port(port).maxOutboundBytes(maxOutboundBytes));
+    }
+
+    public ChatServer(int port, int maxBatchMessages, int maxBatchBytes){
+        this(new ServerConfig().port(port).batch(maxBatchMessages, maxBatchBytes));
+    }
+
+    public ChatServer(int port, long maxOutboundBytes, int maxBatchMessages, int maxBatchBytes){
+        this(new ServerConfig().port(port).maxOutboundBytes(maxOutboundBytes).batch(maxBatchMessages, maxBatchBytes));
+    }
+
+    public ChatServer(ServerConfig config){
+        this.config = config;
     }
 
     /**
@@ -64,67 +101,83 @@ public class ChatServer {
      * 添加一个新的客户端进客户端列表(list集合)
      * @param handler
      */
-    private synchronized void addClient(ClientHandler handler) {
-        connectedClients.add(handler);
-        System.out.println(getClientName(handler.clientChannel)+"已经连接到服务器");
+    private void addClient(ClientHandler handler) {
+        connectedClients.put(handler.id(), handler);
+        pipeline.opened(handler);
     }
 
     /**
-     * 将该客户(下线)从列表中删除
+     * 将该客户(下线)从列表中删除; 可以在任意线程调用(例如转发线程发现它的待发送队列溢出)
+     * 只关闭通道并标记为已关闭: 读缓冲区和解码器属于该连接的读回调, 此时可能正在另一个线程上解码,
+     * 由读回调在未完成的读操作因通道关闭而失败后调用releaseReadState()归还
      * @param clientHandler
      */
-    private synchronized void removeClient(ClientHandler clientHandler) {
-        connectedClients.remove(clientHandler);
-        System.out.println(getClientName(clientHandler.clientChannel)+"已断开连接");
+    private void removeClient(ClientHandler clientHandler) {
+        //remove()是原子的, 读失败和写失败同时触发时只有一个线程会继续执行清理
+        if(!connectedClients.remove(clientHandler.id(), clientHandler)){
+            return;
+        }
+        pipeline.closed(clientHandler);
         //关闭该客户对应流
         close(clientHandler.clientChannel);
+        //归还尚未发送的帧
+        synchronized (clientHandler.outbound){
+            clientHandler.closed = true;
+            //有写操作未完成时缓冲区可能仍在被使用, 由写完成回调负责清空
+            if(!clientHandler.writing){
+                clientHandler.outbound.clear();
+            }
+        }
     }
 
     /**
-     * 服务器其实客户端发送的信息,并将该信息进行utf-8解码
-     * @param buffer
-     * @return
+     * 服务器端转发pipeline编码好的帧到其他客户(转发信息)
+     * 整条消息只构造一次, 每个接收者写出该帧的只读duplicate(); 每个接收者的待发送队列持有一个引用, 写完成后release()
+     * 不持有全局锁: 不加锁地遍历在线用户表, 每个接收者的待发送队列各自加锁
+     * @param sender
+     * @param frame
      */
-    private synchronized String receive(ByteBuffer buffer) {
-        CharBuffer charBuffer = charset.decode(buffer);
-        return String.valueOf(charBuffer);
+    @Override
+    public void broadcast(final ChatConnection sender, final PooledBuffer frame) {
+        connectedClients.forEach((id, handler) -> {
+            //该信息不用再转发到发送信息的那个人那
+            if (handler != sender){
+                //将相应的信息放入用户的待发送队列, 由队列负责写入用户通道
+                handler.send(frame);
+            }
+        });
+    }
+
+    @Override
+    public int connectionCount(){
+        return connectedClients.size();
+    }
+
+    @Override
+    public String name(){
+        return "aio";
     }
 
     /**
-     * 服务器端转发该客户发送的消息到其他客户控制室上(转发信息)
-     * @param clientChannel
-     * @param fwdMsg
+     * 因待发送队列溢出而被断开的慢速客户端数量
+     * @return
      */
-    private synchronized void forwardMessage(AsynchronousSocketChannel clientChannel, String fwdMsg) {
-        for (ClientHandler handler : connectedClients){
-            //该信息不用再转发到发送信息的那个人那
-            if (!handler.clientChannel.equals(clientChannel)){
-                try {
-                    //将要转发的信息写入到缓冲区中
-                    ByteBuffer buffer = charset.encode(getClientName(handler.clientChannel)+":"+fwdMsg);
-                    //将相应的信息写入到用户通道中,用户再通过获取通道中的信息读取到对应转发的内容
-                    handler.clientChannel.write(buffer,null,handler);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    public long slowClientsClosed(){
+        return slowClientsClosed.get();
     }
 
     /**
-     * 获取客户端的端口号并打印出来
+     * 获取客户端的地址, 用于生成名字
      * @param clientChannel
-     * @return
+     * @return 获取失败时返回null
      */
-    private String getClientName(AsynchronousSocketChannel clientChannel) {
-        int clientPort = -1;
+    private static SocketAddress remoteAddress(AsynchronousSocketChannel clientChannel) {
         try {
-            InetSocketAddress inetSocketAddress = (InetSocketAddress) clientChannel.getRemoteAddress();
-            clientPort = inetSocketAddress.getPort();
+            return clientChannel.getRemoteAddress();
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         }
-        return "客户端["+clientPort+"]";
     }
 
     private class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, Object>{
@@ -134,10 +187,22 @@ public class ChatServer {
             if(serverChannel.isOpen()){
                 serverChannel.accept(null, this);
             }
+            if(!running){
+                close(clientChannel);
+                return;
+            }
             if (clientChannel != null && clientChannel.isOpen()) {
+                try {
+                    configure(clientChannel);
+                } catch (IOException e) {
+                    LOG.warn("设置socket选项失败:" + e);
+                    close(clientChannel);
+                    return;
+                }
                 //为该新连接的用户创建handler,用于读写操作
-                ClientHandler handler = new ClientHandler(clientChannel);
-                ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+                ClientHandler handler = new ClientHandler(clientChannel, pool.allocate(BUFFER));
+                openReaders.incrementAndGet();
+                ByteBuffer buffer = handler.readBuffer.buffer();
                 // 将新用户添加到在线用户列表
                 addClient(handler);
                 //第一个buffer: 表示从clientChannel中读取的信息写入到buffer缓冲区中
@@ -148,15 +213,73 @@ public class ChatServer {
 
         @Override
         public void failed(Throwable exc, Object attachment) {
-            System.out.println("连接失败:" + exc);
+            //stop()关闭监听通道时未完成的accept会失败, 不需要警告
+            if(serverChannel.isOpen()){
+                LOG.warn("连接失败:" + exc);
+            }
         }
     }
 
-    private class ClientHandler implements CompletionHandler<Integer, Object>{
+    private class ClientHandler extends ChatConnection implements CompletionHandler<Integer, Object>, FrameHandler {
         //设置
         private AsynchronousSocketChannel clientChannel;
-        public ClientHandler(AsynchronousSocketChannel channel){
+        //从池中借用的读缓冲区, 连接断开时归还
+        private PooledBuffer readBuffer;
+        //待发送队列, 转发线程和写完成回调都会访问, 以队列本身作为锁
+        //超过上限说明对方读得太慢, 断开它以限制每个连接占用的内存
+        private OutboundQueue outbound = new OutboundQueue(config.maxOutboundBytes(), config.maxBatchMessages(), config.maxBatchBytes());
+        //是否有写操作正在进行, 异步通道同一时间只能有一个未完成的写操作
+        private boolean writing;
+        //已从在线列表中移除, 之后转发来的帧直接丢弃; 由outbound的锁保护
+        private boolean closed;
+        //一次read可能读到半个帧或多个帧, 残缺的帧由解码器保留到下一次read
+        private FrameDecoder decoder = new FrameDecoder();
+        private boolean quit;
+
+        public ClientHandler(AsynchronousSocketChannel channel, PooledBuffer readBuffer){
+            //名字只在连接建立时调用一次getRemoteAddress()
+            super(pipeline, remoteAddress(channel));
             this.clientChannel = channel;
+            this.readBuffer = readBuffer;
+        }
+
+        /**
+         * 把帧放入待发送队列; 没有正在进行的写操作时立即发起一次
+         * 写操作进行期间入队的帧会在它完成后通过一次gathering write一起发出
+         * 队列超过字节上限时断开该客户端, 慢速客户端占用的内存不会无限增长
+         * @param frame
+         */
+        @Override
+        public void send(PooledBuffer frame){
+            String state;
+            synchronized (outbound){
+                //转发线程遍历时可能还会遇到刚刚断开的用户
+                if(closed){
+                    return;
+                }
+                frame.retain();
+                if(outbound.offer(frame.buffer().asReadOnlyBuffer(), frame)){
+                    if(!writing){
+                        writing = true;
+                        writeBatch();
+                    }
+                    return;
+                }
+                frame.release();
+                state = outbound.toString();
+            }
+            //待发送队列已满: 在锁外断开该慢速客户端, 已排队的帧由removeClient或写完成回调归还
+            slowClientsClosed.incrementAndGet();
+            LOG.warn(name() + "发送队列溢出, 断开连接 " + state);
+            removeClient(this);
+        }
+
+        /**
+         * 用scatter/gather版本的write一次写出队首的一批帧, 调用时必须持有outbound的锁
+         */
+        private void writeBatch(){
+            int n = outbound.gather();
+            clientChannel.write(outbound.batch(), 0, n, 0L, TimeUnit.MILLISECONDS, this, writeHandler);
         }
 
         @Override
@@ -167,18 +290,23 @@ public class ChatServer {
                      //客户端异常
                      //将客户移除出在线客户列表
                      removeClient(this);
+                     releaseReadState();
                  } else {
                     buffer.flip();
-                    String fwdMsg = receive(buffer);
-                    System.out.println(getClientName(clientChannel) + ":" + fwdMsg);
-                    //转发
-                    forwardMessage(clientChannel, fwdMsg);
+                    try {
+                        decoder.decode(buffer, this);
+                    } catch (IOException e) {
+                        //帧格式错误, 无法继续解析该连接的数据
+                        LOG.warn(name() + "发送了非法数据:" + e.getMessage());
+                        quit = true;
+                    }
                     buffer.clear();
 
                      //检查用户是否退出
-                     if (readyToQuit(fwdMsg)){
+                     if (quit){
                          //将客户从在线客户列表中去除
                          removeClient(this);
+                         releaseReadState();
                      }else {
                          //如果不是则继续等待读取用户输入的信息
                          clientChannel.read(buffer,buffer,this);
@@ -187,42 +315,268 @@ public class ChatServer {
             }
         }
 
+        @Override
+        public void onFrame(byte type, ByteBuffer payload) {
+            //停止过程中只把已经排队的消息写完, 不再转发新消息
+            if(quit || !running){
+                return;
+            }
+            //日志、转发和quit检测都由pipeline处理, 不解码payload
+            quit = !pipeline.onFrame(this, type, payload);
+        }
+
+        @Override
+        public void close(){
+            removeClient(this);
+        }
+
         @Override
         public void failed(Throwable exc, Object attachment) {
-            System.out.println("读写失败:"+exc);
+            boolean closed;
+            synchronized (outbound){
+                closed = this.closed;
+            }
+            //其他线程调用removeClient关闭通道后, 未完成的读操作会失败, 不是异常
+            if(!closed){
+                LOG.warn(name() + "读写失败:"+exc);
+            }
+            removeClient(this);
+            releaseReadState();
+        }
+
+        /**
+         * 归还读缓冲区和残缺帧, 只在读回调中不再发起下一次读时调用, 此时没有未完成的读操作
+         */
+        private void releaseReadState(){
+            if(readBuffer != null){
+                readBuffer.release();
+                readBuffer = null;
+                openReaders.decrementAndGet();
+            }
+            decoder.reset();
+        }
+    }
+
+    /**
+     * gathering write的完成回调: 移除已写完的帧, 队列中还有数据就继续发起下一次写
+     */
+    private class WriteHandler implements CompletionHandler<Long, ClientHandler> {
+
+        @Override
+        public void completed(Long written, ClientHandler handler) {
+            synchronized (handler.outbound){
+                handler.outbound.consumed(written);
+                if(handler.closed){
+                    handler.outbound.clear();
+                    handler.writing = false;
+                } else if(!handler.outbound.isEmpty() && handler.clientChannel.isOpen()){
+                    handler.writeBatch();
+                } else {
+                    handler.writing = false;
+                }
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, ClientHandler handler) {
+            synchronized (handler.outbound){
+                handler.writing = false;
+                if(handler.closed){
+                    handler.outbound.clear();
+                }
+            }
+            //removeClient会获取outbound的锁, 不能在持有它时调用
+            removeClient(handler);
+        }
+    }
+
+    /**
+     * 按配置设置新连接的socket选项
+     * @param clientChannel
+     * @throws IOException
+     */
+    private void configure(AsynchronousSocketChannel clientChannel) throws IOException {
+        clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, config.tcpNoDelay());
+        clientChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, config.keepAlive());
+        if(config.receiveBufferSize() > 0){
+            clientChannel.setOption(StandardSocketOptions.SO_RCVBUF, config.receiveBufferSize());
+        }
+        if(config.sendBufferSize() > 0){
+            clientChannel.setOption(StandardSocketOptions.SO_SNDBUF, config.sendBufferSize());
+        }
+    }
+
+    /**
+     * 按配置创建通道组; SHARED类型直接使用外部的通道组
+     * @return
+     * @throws IOException
+     */
+    private AsynchronousChannelGroup openGroup() throws IOException {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger next = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "aio-worker-" + next.getAndIncrement());
+            }
+        };
+        switch (config.groupType()){
+            case SHARED:
+                return config.sharedGroup();
+            case CACHED:
+                return AsynchronousChannelGroup.withCachedThreadPool(Executors.newCachedThreadPool(factory), config.threads());
+            default:
+                return AsynchronousChannelGroup.withFixedThreadPool(config.threads(), factory);
         }
     }
 
-    private void start(){
+    /**
+     * 使用独立的pipeline启动服务器, 不阻塞调用线程; 需要等待服务器结束时调用await()
+     * @throws IOException 端口绑定失败等
+     */
+    public void start() throws IOException {
+        start(new ChatPipeline());
+    }
+
+    /**
+     * 创建通道组、绑定端口并开始接受连接, 不阻塞调用线程; 需要等待服务器结束时调用await()
+     * @param pipeline
+     * @throws IOException 端口绑定失败等
+     */
+    public synchronized void start(ChatPipeline pipeline) throws IOException {
+        if(running || terminated.getCount() == 0){
+            throw new IllegalStateException("server already started");
+        }
+        this.pipeline = pipeline;
+        channelGroup = openGroup();
         try {
-            //创建并绑定
-            //初始化线程池
-            ExecutorService executorService = Executors.newFixedThreadPool(THREADPOOL_SIZE);
-            //将线程池加入到异步通道中
-            channelGroup = AsynchronousChannelGroup.withThreadPool(executorService);
             //打开通道
             serverChannel = AsynchronousServerSocketChannel.open(channelGroup);
-            //为通道绑定本地主机和端口
-            serverChannel.bind(new InetSocketAddress(LOCALHOST, port));
-            System.out.println("启动服务器, 监听端口" + port);
-
-            while (true){
-                //希望使用AcceptHandler的回调函数, 又使用阻塞式调用, 防止服务器提前关闭或者系统资源浪费
-                //一直调用accept函数,接收要与服务端建立连接的用户
-                serverChannel.accept(null, new AcceptHandler());
-                //阻塞式调用,防止占用系统资源
-                System.in.read();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, config.reuseAddress());
+            if(config.receiveBufferSize() > 0){
+                serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, config.receiveBufferSize());
             }
-
+            //为通道绑定本地主机和端口
+            serverChannel.bind(new InetSocketAddress(config.host(), config.port()), config.backlog());
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
             close(serverChannel);
+            if(config.groupType() != ServerConfig.GroupType.SHARED){
+                channelGroup.shutdownNow();
+            }
+            throw e;
+        }
+        running = true;
+        pipeline.attach(this);
+        LOG.info("启动服务器, " + config);
+        //AcceptHandler每接受一个连接就重新发起下一次accept, 这里只需要发起第一次
+        serverChannel.accept(null, new AcceptHandler());
+    }
+
+    /**
+     * start(pipeline)之后阻塞到stop()完成; 等待时被中断则停止服务器
+     * @param pipeline
+     * @throws IOException
+     */
+    @Override
+    public void serve(ChatPipeline pipeline) throws IOException {
+        start(pipeline);
+        try {
+            await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop();
+        }
+    }
+
+    /**
+     * 阻塞直到stop()完成
+     * @throws InterruptedException
+     */
+    public void await() throws InterruptedException {
+        terminated.await();
+    }
+
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    @Override
+    public void stop(){
+        stop(DEFAULT_STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止服务器: 先关闭监听通道并停止转发新消息, 等待已排队的消息写完(最多timeout), 再断开所有连接;
+     * 自己创建的通道组随之关闭, 共用的通道组保持不变
+     * @param timeout
+     * @param unit
+     * @return 超时前所有待发送数据都已写完时返回true
+     */
+    public boolean stop(long timeout, TimeUnit unit){
+        synchronized (this){
+            if(!running){
+                return terminated.getCount() == 0;
+            }
+            running = false;
         }
+        close(serverChannel);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean drained;
+        try {
+            while (!(drained = drained()) && System.nanoTime() < deadline){
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        //只关闭通道, 未完成的读操作随之失败, 由读回调归还各自的读缓冲区; 通道组要等这些回调执行完再关闭
+        connectedClients.forEach((id, handler) -> removeClient(handler));
+        long released = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            while (openReaders.get() > 0 && System.nanoTime() < released){
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pipeline.detach(this);
+        if(config.groupType() != ServerConfig.GroupType.SHARED){
+            try {
+                channelGroup.shutdownNow();
+                channelGroup.awaitTermination(unit.toMillis(timeout), TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        LOG.info("服务器已停止" + (drained ? "" : ", 部分待发送数据未能写完"));
+        terminated.countDown();
+        return drained;
+    }
+
+    /**
+     * 所有连接都没有未写完的数据
+     * @return
+     */
+    private boolean drained(){
+        final boolean[] drained = {true};
+        connectedClients.forEach((id, handler) -> {
+            synchronized (handler.outbound){
+                if(handler.writing || !handler.outbound.isEmpty()){
+                    drained[0] = false;
+                }
+            }
+        });
+        return drained[0];
     }
 
-    public static void main(String[] args) {
-        ChatServer server = new ChatServer(7777);
+    public static void main(String[] args) throws Exception {
+        final ChatServer server = new ChatServer(ServerConfig.fromSystemProperties().port(Integer.getInteger("chatroom.aio.port", 7777)));
+        //由服务管理器发送SIGTERM时, 写完已排队的消息再退出
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "aio-shutdown"));
         server.start();
+        server.await();
     }
 }
@@ -1,121 +1,188 @@
 package server.aio;
 
-import client.aio.Client;
+import common.buffer.BufferPool;
+import common.buffer.PooledBuffer;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * aio回显服务器, 作为传输层开销的基线: 不包含任何聊天逻辑, 读到多少就原样写回多少
+ * 每个连接一个Connection对象和一块复用的直接缓冲区, 读写各有一个所有连接共用的回调,
+ * 稳定运行时读写循环中本类不分配任何对象
+ */
 public class Server {
-    final String LOCALHOST = "127.0.0.1";
-    final int DEFAULT_PORT = 8888;
+    private static final String LOCALHOST = "127.0.0.1";
+    private static final int DEFAULT_PORT = 8888;
+    private static final int BUFFER = 4096;
+
+    private static final ReadHandler READ_HANDLER = new ReadHandler();
+    private static final WriteHandler WRITE_HANDLER = new WriteHandler();
+
+    private final BufferPool pool = BufferPool.DEFAULT;
+    private final int port;
+    private final int threads;
+    private AsynchronousChannelGroup group;
     AsynchronousServerSocketChannel serverChannel;
 
-    private void close(Closeable closeable){
+    public Server(){
+        this(DEFAULT_PORT);
+    }
+
+    public Server(int port){
+        this(port, Runtime.getRuntime().availableProcessors());
+    }
+
+    public Server(int port, int threads){
+        this.port = port;
+        this.threads = threads;
+    }
+
+    private static void close(Closeable closeable){
         if(closeable != null){
             try{
                 closeable.close();
-                System.out.println("关闭" + closeable);
             } catch (IOException e){
                 e.printStackTrace();
             }
         }
     }
 
-    public void start(){
-        try{
-            //  创建新的异步服务器窗口
-            serverChannel = AsynchronousServerSocketChannel.open();
-            // 绑定监听端口
-            // AsynchronousChannelGroup ≈ 线程池
-            serverChannel.bind(new InetSocketAddress(LOCALHOST, DEFAULT_PORT));
-            System.out.println("启动服务器，监听端口:" + DEFAULT_PORT);
-            //因为此处的accept是异步调用, 所以将会马上返回, 但是又需要准备好数据时可返回数据, 所以放入循环中
-            while (true){
-                //AcceptHandler() --> 实现completionHandler接口; 其在其他线程调用
-                serverChannel.accept(null, new AcceptHandler());
-                //≈sleep(); 小技巧: read阻塞式调用, 防止accept过于频繁调用, 浪费太多资源
-                System.in.read();
-            }
-        } catch (IOException e){
+    /**
+     * 绑定端口并开始接受连接, 不阻塞调用线程
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        //AsynchronousChannelGroup ≈ 线程池
+        group = AsynchronousChannelGroup.withFixedThreadPool(threads, r -> new Thread(r, "echo-worker"));
+        //  创建新的异步服务器窗口
+        serverChannel = AsynchronousServerSocketChannel.open(group);
+        // 绑定监听端口
+        serverChannel.bind(new InetSocketAddress(LOCALHOST, port));
+        System.out.println("启动服务器，监听端口:" + port);
+        //AcceptHandler每接受一个连接就重新发起下一次accept, 这里只需要发起第一次
+        serverChannel.accept(null, new AcceptHandler());
+    }
+
+    /**
+     * 阻塞直到stop()关闭通道组
+     * @throws InterruptedException
+     */
+    public void await() throws InterruptedException {
+        group.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    public void stop(){
+        close(serverChannel);
+        try {
+            group.shutdownNow();
+        } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            close(serverChannel);
+        }
+    }
+
+    /**
+     * 每个连接的状态: 通道和读写共用的缓冲区, 连接断开时归还缓冲区
+     */
+    private static class Connection {
+        private final AsynchronousSocketChannel channel;
+        private final PooledBuffer owner;
+        private final ByteBuffer buffer;
+
+        Connection(AsynchronousSocketChannel channel, PooledBuffer owner){
+            this.channel = channel;
+            this.owner = owner;
+            this.buffer = owner.buffer();
+        }
+
+        void read(){
+            buffer.clear();
+            channel.read(buffer, this, READ_HANDLER);
+        }
+
+        void close(){
+            Server.close(channel);
+            owner.release();
         }
     }
 
     private class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, Object> {
 
         @Override
-        public void completed(AsynchronousSocketChannel result, Object attachment) {
+        public void completed(AsynchronousSocketChannel clientChannel, Object attachment) {
             if(serverChannel.isOpen()){
                 serverChannel.accept(null, this);
             }
-
-            //定义局部变量, 增加可读性
-            AsynchronousSocketChannel clientChannel = result;
             if(clientChannel != null && clientChannel.isOpen()){
-                //处理客户端通道的handler
-                ClientHandler handler = new ClientHandler(clientChannel);
-
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
-                //判断是读操作还是写操作, 后续加入attachment传送
-                Map<String, Object> info = new HashMap<>();
-                //默认读操作
-                info.put("type", "read");
-                info.put("buffer", buffer);
-
-                clientChannel.read(buffer, info, handler);
+                try {
+                    //回显的数据量很小, 不能让Nagle算法把它攒起来
+                    clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    close(clientChannel);
+                    return;
+                }
+                new Connection(clientChannel, pool.allocate(BUFFER)).read();
             }
         }
 
         @Override
         public void failed(Throwable exc, Object attachment) {
-            //处理错误
+            //stop()关闭监听通道时未完成的accept会失败
         }
     }
 
-    private class ClientHandler implements CompletionHandler<Integer, Object>{
-        private AsynchronousSocketChannel clientChannel;
-        public ClientHandler(AsynchronousSocketChannel channel){
-            this.clientChannel = channel;
+    /**
+     * 读完成: 把读到的数据原样写回
+     */
+    private static class ReadHandler implements CompletionHandler<Integer, Connection> {
+
+        @Override
+        public void completed(Integer result, Connection connection) {
+            if(result < 0){
+                connection.close();
+                return;
+            }
+            connection.buffer.flip();
+            connection.channel.write(connection.buffer, connection, WRITE_HANDLER);
+        }
+
+        @Override
+        public void failed(Throwable exc, Connection connection) {
+            connection.close();
         }
+    }
+
+    /**
+     * 写完成: 没写完就继续写, 写完了再读下一批
+     */
+    private static class WriteHandler implements CompletionHandler<Integer, Connection> {
 
         @Override
-        public void completed(Integer result, Object attachment) {
-            //拿到操作类型
-            Map<String, Object> info = (Map<String, Object>) attachment;
-            String type = (String) info.get("type");
-
-            final String read = "read";
-            final String write = "write";
-            if(read.equals(type)){
-                ByteBuffer buffer = (ByteBuffer) info.get("buffer");
-                buffer.flip();
-                info.put("type", "write");
-                clientChannel.write(buffer, info, this);
-            } else if (write.equals(type)){
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
-                info.put("type", "read");
-                info.put("buffer", buffer);
-                clientChannel.read(buffer, info, this);
+        public void completed(Integer result, Connection connection) {
+            if(connection.buffer.hasRemaining()){
+                connection.channel.write(connection.buffer, connection, this);
+            } else {
+                connection.read();
             }
         }
 
         @Override
-        public void failed(Throwable exc, Object attachment) {
-            //处理错误
+        public void failed(Throwable exc, Connection connection) {
+            connection.close();
         }
     }
 
-    public static void main(String[] args) {
-        Server server = new Server();
+    public static void main(String[] args) throws Exception {
+        Server server = new Server(args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT);
         server.start();
+        server.await();
     }
 }
@@ -0,0 +1,217 @@
+package server.aio;
+
+import common.buffer.OutboundQueue;
+
+import java.nio.channels.AsynchronousChannelGroup;
+
+/**
+ * aio聊天服务器的配置: 通道组类型与线程数、监听地址、socket选项以及每个连接的待发送队列限制
+ * 各项都有默认值, 通过链式调用修改; 也可以用fromSystemProperties()从-Dchatroom.aio.*读取, 方便按主机调整而不改代码
+ * socket选项为0表示使用系统默认值
+ */
+public class ServerConfig {
+
+    /**
+     * 通道组的类型
+     * FIXED  固定数量的线程, 回调中不能有阻塞操作
+     * CACHED 按需创建线程的线程池, threads为初始线程数; 回调可能阻塞时使用
+     * SHARED 使用外部传入的通道组, 与其他服务共用线程, 服务器停止时不关闭它
+     */
+    public enum GroupType { FIXED, CACHED, SHARED }
+
+    public static final String DEFAULT_HOST = "localhost";
+    public static final int DEFAULT_PORT = 8888;
+    public static final long DEFAULT_MAX_OUTBOUND_BYTES = 1024 * 1024;
+
+    private String host = DEFAULT_HOST;
+    private int port = DEFAULT_PORT;
+    private GroupType groupType = GroupType.FIXED;
+    //默认与CPU核数一致
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private AsynchronousChannelGroup sharedGroup;
+    //监听队列长度, 0表示系统默认值
+    private int backlog;
+    private boolean reuseAddress = true;
+    private boolean tcpNoDelay = true;
+    private boolean keepAlive;
+    private int receiveBufferSize;
+    private int sendBufferSize;
+    private long maxOutboundBytes = DEFAULT_MAX_OUTBOUND_BYTES;
+    private int maxBatchMessages = OutboundQueue.DEFAULT_MAX_BATCH_MESSAGES;
+    private int maxBatchBytes = OutboundQueue.DEFAULT_MAX_BATCH_BYTES;
+
+    /**
+     * 读取系统属性, 未设置的项保持默认值:
+     * chatroom.aio.host, chatroom.aio.port, chatroom.aio.group(fixed/cached), chatroom.aio.threads, chatroom.aio.backlog,
+     * chatroom.aio.tcpNoDelay, chatroom.aio.keepAlive, chatroom.aio.rcvbuf, chatroom.aio.sndbuf, chatroom.aio.maxOutboundBytes
+     * @return
+     */
+    public static ServerConfig fromSystemProperties(){
+        ServerConfig config = new ServerConfig();
+        config.host(System.getProperty("chatroom.aio.host", config.host));
+        config.port(Integer.getInteger("chatroom.aio.port", config.port));
+        String group = System.getProperty("chatroom.aio.group");
+        if(group != null){
+            config.groupType(GroupType.valueOf(group.trim().toUpperCase()));
+        }
+        config.threads(Integer.getInteger("chatroom.aio.threads", config.threads));
+        config.backlog(Integer.getInteger("chatroom.aio.backlog", config.backlog));
+        config.tcpNoDelay(Boolean.parseBoolean(System.getProperty("chatroom.aio.tcpNoDelay", String.valueOf(config.tcpNoDelay))));
+        config.keepAlive(Boolean.getBoolean("chatroom.aio.keepAlive"));
+        config.receiveBufferSize(Integer.getInteger("chatroom.aio.rcvbuf", config.receiveBufferSize));
+        config.sendBufferSize(Integer.getInteger("chatroom.aio.sndbuf", config.sendBufferSize));
+        config.maxOutboundBytes(Long.getLong("chatroom.aio.maxOutboundBytes", config.maxOutboundBytes));
+        return config;
+    }
+
+    public ServerConfig host(String host){
+        this.host = host;
+        return this;
+    }
+
+    public ServerConfig port(int port){
+        this.port = port;
+        return this;
+    }
+
+    public ServerConfig groupType(GroupType groupType){
+        if(groupType == GroupType.SHARED && sharedGroup == null){
+            throw new IllegalArgumentException("use sharedGroup(group) to share a channel group");
+        }
+        this.groupType = groupType;
+        return this;
+    }
+
+    public ServerConfig threads(int threads){
+        if(threads < 1){
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * 使用外部的通道组, 同时把类型设为SHARED
+     * @param group
+     * @return
+     */
+    public ServerConfig sharedGroup(AsynchronousChannelGroup group){
+        if(group == null){
+            throw new IllegalArgumentException("group must not be null");
+        }
+        this.sharedGroup = group;
+        this.groupType = GroupType.SHARED;
+        return this;
+    }
+
+    public ServerConfig backlog(int backlog){
+        this.backlog = backlog;
+        return this;
+    }
+
+    public ServerConfig reuseAddress(boolean reuseAddress){
+        this.reuseAddress = reuseAddress;
+        return this;
+    }
+
+    public ServerConfig tcpNoDelay(boolean tcpNoDelay){
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    public ServerConfig keepAlive(boolean keepAlive){
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    public ServerConfig receiveBufferSize(int receiveBufferSize){
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    public ServerConfig sendBufferSize(int sendBufferSize){
+        this.sendBufferSize = sendBufferSize;
+        return this;
+    }
+
+    public ServerConfig maxOutboundBytes(long maxOutboundBytes){
+        if(maxOutboundBytes <= 0){
+            throw new IllegalArgumentException("maxOutboundBytes must be positive: " + maxOutboundBytes);
+        }
+        this.maxOutboundBytes = maxOutboundBytes;
+        return this;
+    }
+
+    public ServerConfig batch(int maxBatchMessages, int maxBatchBytes){
+        if(maxBatchMessages < 1 || maxBatchBytes < 1){
+            throw new IllegalArgumentException("batch limits must be positive: " + maxBatchMessages + ", " + maxBatchBytes);
+        }
+        this.maxBatchMessages = maxBatchMessages;
+        this.maxBatchBytes = maxBatchBytes;
+        return this;
+    }
+
+    public String host(){
+        return host;
+    }
+
+    public int port(){
+        return port;
+    }
+
+    public GroupType groupType(){
+        return groupType;
+    }
+
+    public int threads(){
+        return threads;
+    }
+
+    public AsynchronousChannelGroup sharedGroup(){
+        return sharedGroup;
+    }
+
+    public int backlog(){
+        return backlog;
+    }
+
+    public boolean reuseAddress(){
+        return reuseAddress;
+    }
+
+    public boolean tcpNoDelay(){
+        return tcpNoDelay;
+    }
+
+    public boolean keepAlive(){
+        return keepAlive;
+    }
+
+    public int receiveBufferSize(){
+        return receiveBufferSize;
+    }
+
+    public int sendBufferSize(){
+        return sendBufferSize;
+    }
+
+    public long maxOutboundBytes(){
+        return maxOutboundBytes;
+    }
+
+    public int maxBatchMessages(){
+        return maxBatchMessages;
+    }
+
+    public int maxBatchBytes(){
+        return maxBatchBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerConfig[" + host + ":" + port + ", group=" + groupType + ", threads=" + threads
+                + ", backlog=" + backlog + ", tcpNoDelay=" + tcpNoDelay + ", keepAlive=" + keepAlive
+                + ", rcvbuf=" + receiveBufferSize + ", sndbuf=" + sendBufferSize
+                + ", maxOutboundBytes=" + maxOutboundBytes + "]";
+    }
+}
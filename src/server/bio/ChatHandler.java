@@ -1,14 +1,31 @@
 package server.bio;
 
+import common.codec.FrameDecoder;
+import common.codec.FrameHandler;
+import common.log.AsyncLogger;
+import server.core.ChatConnection;
+import server.core.ChatPipeline;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+
+public class ChatHandler implements Runnable, FrameHandler {
+    private static final int BUFFER = 8192;
+    private static final AsyncLogger LOG = AsyncLogger.get();
 
-public class ChatHandler implements Runnable{
     private ChatServer server;
+    private ChatPipeline pipeline;
     private Socket socket;
+    //addClient()之后才有, 转发和移除都用它
+    private ChatConnection connection;
+    //一次read可能读到半个帧或多个帧, 残缺的帧由解码器保留到下一次read
+    private FrameDecoder decoder = new FrameDecoder();
+    private boolean quit;
 
     public ChatHandler(ChatServer chatServer, Socket socket){
         this.server = chatServer;
+        this.pipeline = chatServer.pipeline();
         this.socket = socket;
     }
 
@@ -16,30 +33,40 @@ public class ChatHandler implements Runnable{
     public void run() {
         try{
             //存储新上线用户
-            server.addClient(socket);
+            connection = server.addClient(socket);
             //读取用户发送的消息
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            String msg = null;
-            while ((msg = reader.readLine()) != null){
-                String fwdMsg = "客户端[" + socket.getPort() + "]:" + msg + "\n";
-                System.out.println(fwdMsg);
-                //将消息转发给聊天室的其他用户
-                server.forwardMessage(socket, fwdMsg);
-                if(server.readyToQuit(msg)){
-                    break;
-                }
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[BUFFER];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+
+            int n;
+            while (!quit && (n = in.read(buffer)) != -1){
+                wrapped.clear();
+                wrapped.limit(n);
+                decoder.decode(wrapped, this);
             }
         } catch (IOException e){
-            e.printStackTrace();
+            //写线程因慢速或写失败关闭socket时, 阻塞的read也会在这里结束
+            LOG.warn((connection != null ? connection.name() : "客户端[" + socket.getPort() + "]") + "连接异常:" + e.getMessage());
         } finally {
             try {
-                server.removeClient(socket);
+                if(connection != null){
+                    server.removeClient(connection);
+                }
+                socket.close();
             } catch (IOException e){
                 e.printStackTrace();
             }
         }
     }
 
-}
+    @Override
+    public void onFrame(byte type, ByteBuffer payload) {
+        if(quit){
+            return;
+        }
+        //日志、转发给聊天室的其他用户和quit检测都由pipeline处理, payload保持原始字节
+        quit = !pipeline.onFrame(connection, type, payload);
+    }
 
+}
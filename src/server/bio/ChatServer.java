@@ -1,95 +1,345 @@
 package server.bio;
 
+import common.buffer.PooledBuffer;
+import common.codec.FrameCodec;
+import common.log.AsyncLogger;
+import common.session.SessionTable;
+import server.core.ChatConnection;
+import server.core.ChatPipeline;
+import server.core.ChatTransport;
+
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * bio传输层: 每个连接一个阻塞读的ChatHandler和一个阻塞写的ClientWriter, 聊天逻辑由ChatPipeline处理
+ */
+public class ChatServer implements ChatTransport {
+
+    /**
+     * 每个连接的ChatHandler运行在什么线程上
+     * VIRTUAL 每个连接一个虚拟线程(JDK 21+), 阻塞读写只挂起虚拟线程, 可以支撑数万个连接
+     * POOLED  有上限的平台线程池, 线程用完时新连接会被立即拒绝, 而不是悄悄排队
+     */
+    public enum ThreadMode { VIRTUAL, POOLED }
+
+    /**
+     * 慢速客户端(待发送队列超过上限)的处理方式
+     * DROP       丢弃放不下的新消息, 保持连接
+     * DISCONNECT 断开该客户端
+     */
+    public enum SlowConsumerPolicy { DROP, DISCONNECT }
 
-public class ChatServer {
-    private int DEFAULT_PORT = 8888;
-    private final String QUIT = "quit";
+    private static final AsyncLogger LOG = AsyncLogger.get();
+    private static final int DEFAULT_PORT = 8888;
+    //POOLED模式下默认的最大线程数, 每个连接占用读、写两个线程
+    private static final int DEFAULT_MAX_THREADS = 1024;
+    //每个客户端待发送队列的默认上限
+    private static final long DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+    //拒绝连接时发给客户端的提示
+    private static final byte[] SERVER_FULL = FrameCodec.encode(FrameCodec.TEXT, "服务器已满, 请稍后再试").array();
 
     private ExecutorService executorService;
     private ServerSocket serverSocket = null;
-    //建立客户列表 ——> 后续转发信息使用
-    private Map<Integer, Writer> connectedClients;
+    //本传输层的客户列表 ——> 后续转发信息使用; 以pipeline分配的会话编号为键(不同主机的端口可能相同),
+    //转发时不加锁遍历, 每个客户端由自己的写线程发送
+    private final SessionTable<ClientWriter> connectedClients = new SessionTable<>();
+    //serve()时传入, 命名、日志、quit检测和转发都交给它
+    private volatile ChatPipeline pipeline;
+    //每个客户端待发送队列的字节上限, 以及超过上限时的处理方式
+    private long maxQueuedBytes;
+    private SlowConsumerPolicy slowConsumerPolicy;
+    private int port;
+    private ThreadMode threadMode;
+    //线程池已满而被拒绝的连接数
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    //stop()置为false后accept失败不再打印异常
+    private volatile boolean running = true;
 
     public ChatServer(){
-        executorService = Executors.newFixedThreadPool(3);
-        connectedClients = new HashMap<>();
+        this(DEFAULT_PORT);
     }
 
-    //线程安全
-    public synchronized void addClient(Socket socket) throws IOException{
-        if(socket != null) {
-            int port = socket.getPort();
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            connectedClients.put(port, writer);
-            System.out.println("客户端[" + port + "]已连接");
-        }
+    /**
+     * 线程模式和线程数取自系统属性chatroom.bio.mode(virtual/pooled)与chatroom.bio.threads,
+     * 未设置时在支持虚拟线程的JDK上使用VIRTUAL, 否则使用POOLED
+     * 慢速客户端的处理取自chatroom.bio.maxQueuedBytes与chatroom.bio.slowConsumer(drop/disconnect), 默认1MB后断开
+     * @param port
+     */
+    public ChatServer(int port){
+        this(port, defaultThreadMode(), Integer.getInteger("chatroom.bio.threads", DEFAULT_MAX_THREADS),
+                Long.getLong("chatroom.bio.maxQueuedBytes", DEFAULT_MAX_QUEUED_BYTES),
+                SlowConsumerPolicy.valueOf(System.getProperty("chatroom.bio.slowConsumer", "disconnect").trim().toUpperCase()));
+    }
+
+    public ChatServer(int port, ThreadMode threadMode, int maxThreads){
+        this(port, threadMode, maxThreads, DEFAULT_MAX_QUEUED_BYTES, SlowConsumerPolicy.DISCONNECT);
     }
 
-    public synchronized void removeClient(Socket socket) throws IOException{
-        if(socket != null){
-            int port = socket.getPort();
-            if(connectedClients.containsKey(port)){
-                connectedClients.get(port).close();
+    /**
+     * @param port
+     * @param threadMode 请求VIRTUAL但JDK不支持时退回POOLED
+     * @param maxThreads POOLED模式下的最大线程数, 每个连接占用两个线程(读和写)
+     * @param maxQueuedBytes 每个客户端待发送队列的字节上限
+     * @param slowConsumerPolicy 超过上限时丢弃新消息还是断开该客户端
+     */
+    public ChatServer(int port, ThreadMode threadMode, int maxThreads,
+                      long maxQueuedBytes, SlowConsumerPolicy slowConsumerPolicy){
+        if(maxThreads < 2){
+            throw new IllegalArgumentException("maxThreads must be at least 2: " + maxThreads);
+        }
+        if(maxQueuedBytes <= 0){
+            throw new IllegalArgumentException("maxQueuedBytes must be positive: " + maxQueuedBytes);
+        }
+        this.port = port;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        executorService = threadMode == ThreadMode.VIRTUAL ? newVirtualThreadExecutor() : null;
+        if(executorService == null){
+            if(threadMode == ThreadMode.VIRTUAL){
+                LOG.warn("当前JDK不支持虚拟线程, 改用最多" + maxThreads + "个线程的线程池");
             }
-            connectedClients.remove(port);
-            System.out.println("客户端[" + port + "]已断开连接");
+            threadMode = ThreadMode.POOLED;
+            executorService = newBoundedExecutor(maxThreads);
+        }
+        this.threadMode = threadMode;
+    }
+
+    private static ThreadMode defaultThreadMode(){
+        String mode = System.getProperty("chatroom.bio.mode");
+        if(mode != null){
+            return ThreadMode.valueOf(mode.trim().toUpperCase());
+        }
+        return virtualThreadsSupported() ? ThreadMode.VIRTUAL : ThreadMode.POOLED;
+    }
+
+    private static boolean virtualThreadsSupported(){
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 通过反射调用Executors.newVirtualThreadPerTaskExecutor(), 源码仍然可以在旧版本JDK上编译
+     * @return 不支持时返回null
+     */
+    private static ExecutorService newVirtualThreadExecutor(){
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
         }
     }
 
-    public synchronized void forwardMessage(Socket socket, String fwdMsg) throws IOException{
-        for(Integer id : connectedClients.keySet()){
-            if(!id.equals(socket.getPort())){
-                Writer writer = connectedClients.get(id);
-                writer.write(fwdMsg);
-                writer.flush();
+    /**
+     * 最多maxThreads个线程, 空闲线程60秒后回收; 没有等待队列, 线程用完时execute()直接抛出RejectedExecutionException
+     * @param maxThreads
+     * @return
+     */
+    private static ExecutorService newBoundedExecutor(int maxThreads){
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger next = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bio-handler-" + next.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
             }
+        };
+        return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), factory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public ThreadMode threadMode(){
+        return threadMode;
+    }
+
+    /**
+     * 线程池已满而被拒绝的连接数
+     * @return
+     */
+    public long rejectedConnections(){
+        return rejectedConnections.get();
+    }
+
+    @Override
+    public String name(){
+        return "bio";
+    }
+
+    ChatPipeline pipeline(){
+        return pipeline;
+    }
+
+    /**
+     * 为新客户端创建写线程并加入客户列表
+     * @param socket
+     * @return 该客户端在pipeline中的连接, 之后用它转发消息和移除该客户端
+     * @throws IOException 线程已用完时无法服务该客户端
+     */
+    public ChatConnection addClient(Socket socket) throws IOException{
+        ClientWriter writer = new ClientWriter(pipeline, socket, maxQueuedBytes, slowConsumerPolicy);
+        try {
+            executorService.execute(writer);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("线程已用完, 无法为" + writer.name() + "启动写线程");
+        }
+        connectedClients.put(writer.id(), writer);
+        pipeline.opened(writer);
+        return writer;
+    }
+
+    public void removeClient(ChatConnection connection){
+        if(connectedClients.remove(connection.id(), (ClientWriter) connection)){
+            connection.close();
+            pipeline.closed(connection);
         }
     }
 
-    public boolean readyToQuit(String msg){
-        return QUIT.equals(msg);
+    /**
+     * 转发已经编码好的帧, 所有接收者共用同一个池化的帧
+     * 只是放入各个接收者的待发送队列, 不等待写出, 也不持有全局锁; 某个接收者读得慢不会阻塞发送者
+     * @param sender
+     * @param frame
+     */
+    @Override
+    public void broadcast(final ChatConnection sender, final PooledBuffer frame){
+        connectedClients.forEach((id, writer) -> {
+            if(writer != sender){
+                writer.send(frame);
+            }
+        });
+    }
+
+    @Override
+    public int connectionCount(){
+        return connectedClients.size();
+    }
+
+    /**
+     * 所有客户端因落后太多而被丢弃的消息数
+     * @return
+     */
+    public long droppedMessages(){
+        final long[] total = {0};
+        connectedClients.forEach((id, writer) -> total[0] += writer.dropped());
+        return total[0];
     }
 
     public synchronized void close(){
         if(serverSocket != null){
             try {
                 serverSocket.close();
-                System.out.println("关闭serverSocket");
+                LOG.info("关闭serverSocket");
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    /**
+     * 停止服务器: 关闭监听端口和所有客户端连接, 阻塞在accept()上的start()随之返回
+     */
+    @Override
+    public void stop(){
+        running = false;
+        close();
+        connectedClients.forEach((id, writer) -> removeClient(writer));
+        executorService.shutdownNow();
+    }
+
+    /**
+     * 使用独立的pipeline启动服务器, 阻塞到stop()被调用
+     */
     public void start(){
+        try {
+            serve(new ChatPipeline());
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void serve(ChatPipeline pipeline) throws IOException {
+        this.pipeline = pipeline;
         //绑定监听端口;
+        synchronized (this){
+            serverSocket = new ServerSocket(port);
+        }
+        pipeline.attach(this);
+        LOG.info("启动服务器, 监听端口:" + port + ", 线程模式:" + threadMode);
         try{
-            serverSocket = new ServerSocket(DEFAULT_PORT);
-            System.out.println("启动服务器, 监听端口:" + DEFAULT_PORT);
-
-            while (true){
+            while (running){
                 //等待客户端连接
                 Socket socket = serverSocket.accept();
-                //伪异步聊天室 线程池
-                executorService.execute(new ChatHandler(this, socket));
+                //与aio一致关闭Nagle算法, 小消息不会被攒到对方的延迟ACK之后才发出
+                socket.setTcpNoDelay(true);
+                //每个连接一个ChatHandler, 运行在虚拟线程或有上限的线程池上
+                try {
+                    executorService.execute(new ChatHandler(this, socket));
+                } catch (RejectedExecutionException e) {
+                    reject(socket);
+                }
                 //创建ChatHandler线程
                 //new Thread(new ChatHandler(this, socket)).start();
             }
         } catch (IOException e){
-            e.printStackTrace();
+            if(running){
+                throw e;
+            }
         } finally {
+            pipeline.detach(this);
             close();
         }
     }
 
+    /**
+     * 线程已用完: 告诉客户端服务器已满并断开, 不让它一直等待
+     * @param socket
+     */
+    private void reject(Socket socket){
+        if(!running){
+            closeQuietly(socket);
+            return;
+        }
+        rejectedConnections.incrementAndGet();
+        LOG.warn("线程已用完, 拒绝客户端[" + socket.getPort() + "]");
+        try {
+            socket.setSoTimeout(1000);
+            OutputStream out = socket.getOutputStream();
+            out.write(SERVER_FULL);
+            out.flush();
+        } catch (IOException e) {
+            //对方已断开
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket){
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //忽略
+        }
+    }
+
     public static void main(String[] args){
         ChatServer chatServer = new ChatServer();
         chatServer.start();
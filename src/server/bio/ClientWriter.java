@@ -0,0 +1,165 @@
+package server.bio;
+
+import common.buffer.PooledBuffer;
+import common.log.AsyncLogger;
+import server.core.ChatConnection;
+import server.core.ChatPipeline;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每个客户端独占的写线程: 转发线程只把帧放入有上限的待发送队列, 由本线程阻塞地写入socket
+ * 某个客户端的TCP窗口满了只会阻塞它自己的写线程, 不会影响其他发送者和加入/离开
+ * 队列按字节数限制, 超过上限(落后太多)时按ChatServer.SlowConsumerPolicy丢弃新消息或断开该客户端
+ */
+class ClientWriter extends ChatConnection implements Runnable {
+
+    private static final AsyncLogger LOG = AsyncLogger.get();
+    //写出前把帧从直接缓冲区复制到这里, 排队的多个帧拼在一起只调用一次write
+    private static final int BUFFER = 8192;
+
+    private final Socket socket;
+    private final OutputStream out;
+    //所有接收者共用同一个池化的帧, 队列中的每个引用写完后release()
+    private final BlockingQueue<PooledBuffer> queue = new LinkedBlockingQueue<>();
+    private final long maxQueuedBytes;
+    private final ChatServer.SlowConsumerPolicy policy;
+    //队列中尚未写出的字节数
+    private final AtomicLong queuedBytes = new AtomicLong();
+    //因落后太多而丢弃的消息数
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+    //运行run()的线程, close()中断它使阻塞在take()上的写线程退出; 由this的锁保护,
+    //run()结束时清空, 避免中断线程池中已经在执行其他任务的线程
+    private Thread thread;
+
+    ClientWriter(ChatPipeline pipeline, Socket socket, long maxQueuedBytes, ChatServer.SlowConsumerPolicy policy) throws IOException {
+        super(pipeline, socket.getRemoteSocketAddress());
+        this.socket = socket;
+        this.out = socket.getOutputStream();
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * 把帧放入待发送队列, 不阻塞
+     * @param frame
+     */
+    @Override
+    public void send(PooledBuffer frame){
+        if(closed){
+            return;
+        }
+        int length = frame.buffer().remaining();
+        long queued = queuedBytes.addAndGet(length);
+        if(queued > maxQueuedBytes){
+            queuedBytes.addAndGet(-length);
+            if(policy == ChatServer.SlowConsumerPolicy.DROP){
+                //同一个慢速客户端每丢弃1024条消息记录一次
+                if((dropped.incrementAndGet() & 1023) == 1){
+                    LOG.warn(name() + "落后超过" + maxQueuedBytes + "字节, 已丢弃" + dropped.get() + "条消息");
+                }
+            } else {
+                LOG.warn(name() + "落后超过" + maxQueuedBytes + "字节, 断开连接");
+                close();
+            }
+            return;
+        }
+        queue.offer(frame.retain());
+        //close()和入队并发时, 由这里负责归还close()之后放入的帧
+        if(closed){
+            drain();
+        }
+    }
+
+    @Override
+    public void run() {
+        synchronized (this){
+            thread = Thread.currentThread();
+        }
+        byte[] buffer = new byte[BUFFER];
+        try {
+            while (!closed){
+                PooledBuffer frame = queue.take();
+                //把已经排队的消息都复制进buffer, 满了才write, 队列空了再write剩下的部分
+                int n = 0;
+                do {
+                    ByteBuffer src = frame.buffer().duplicate();
+                    int length = src.remaining();
+                    try {
+                        while (src.hasRemaining()){
+                            int chunk = Math.min(src.remaining(), buffer.length - n);
+                            src.get(buffer, n, chunk);
+                            n += chunk;
+                            if(n == buffer.length){
+                                out.write(buffer, 0, n);
+                                n = 0;
+                            }
+                        }
+                    } finally {
+                        frame.release();
+                    }
+                    queuedBytes.addAndGet(-length);
+                } while ((frame = queue.poll()) != null);
+                if(n > 0){
+                    out.write(buffer, 0, n);
+                }
+            }
+        } catch (IOException e) {
+            //对方已断开, 读线程会发现并移除该客户端
+            close();
+        } catch (InterruptedException e) {
+            //close()中断了写线程
+        } finally {
+            synchronized (this){
+                thread = null;
+                //清除close()留下的中断标记, 线程还要继续执行其他任务
+                Thread.interrupted();
+            }
+            drain();
+        }
+    }
+
+    private void drain(){
+        PooledBuffer frame;
+        while ((frame = queue.poll()) != null){
+            queuedBytes.addAndGet(-frame.buffer().remaining());
+            frame.release();
+        }
+    }
+
+    /**
+     * 关闭连接并让写线程退出; 关闭socket也会使阻塞在read上的ChatHandler退出
+     */
+    @Override
+    public void close(){
+        if(closed){
+            return;
+        }
+        closed = true;
+        synchronized (this){
+            if(thread != null){
+                thread.interrupt();
+            }
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //忽略
+        }
+    }
+
+    long queuedBytes(){
+        return queuedBytes.get();
+    }
+
+    long dropped(){
+        return dropped.get();
+    }
+}
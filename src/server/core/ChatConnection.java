@@ -0,0 +1,56 @@
+package server.core;
+
+import common.buffer.PooledBuffer;
+import common.codec.FrameCodec;
+
+import java.net.SocketAddress;
+
+/**
+ * 一个客户端连接在ChatPipeline中的身份: 服务器分配的编号和名字, 以及传输层提供的发送和断开操作
+ * 编号和名字在构造时确定, 转发时拼接的前缀也只编码一次
+ */
+public abstract class ChatConnection {
+    private final long id;
+    //"客户端[端口]"
+    private final String name;
+    //"客户端[端口]:", 转发时直接拼接在payload前面
+    private final byte[] prefix;
+
+    protected ChatConnection(ChatPipeline pipeline, SocketAddress remote){
+        this.id = pipeline.newId();
+        this.name = ChatPipeline.nameOf(remote);
+        this.prefix = (name + ":").getBytes(FrameCodec.UTF_8);
+    }
+
+    /**
+     * @return 服务器分配的编号, 在同一个pipeline中唯一, 不会像端口那样在不同主机之间重复
+     */
+    public final long id(){
+        return id;
+    }
+
+    public final String name(){
+        return name;
+    }
+
+    final byte[] prefix(){
+        return prefix;
+    }
+
+    /**
+     * 把已编码的帧放入本连接的待发送队列, 不阻塞, 可以在任意线程调用
+     * 需要在返回后继续使用frame时自行retain(), 用完后release()
+     * @param frame
+     */
+    public abstract void send(PooledBuffer frame);
+
+    /**
+     * 断开连接, 可以在任意线程调用
+     */
+    public abstract void close();
+
+    @Override
+    public String toString() {
+        return name + "#" + id;
+    }
+}
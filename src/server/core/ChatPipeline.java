@@ -0,0 +1,148 @@
+package server.core;
+
+import common.buffer.BufferPool;
+import common.buffer.PooledBuffer;
+import common.codec.FrameCodec;
+import common.log.AsyncLogger;
+import common.session.SessionTable;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 所有传输层共用的聊天逻辑: 连接登记、命名、日志、quit检测和消息转发
+ * 传输层解码出帧后调用onFrame(), 转发时整条消息只编码一次, 再交给每个传输层放入各自连接的待发送队列
+ * 新功能和优化只需要在这里实现一次; 一个pipeline可以同时挂多个传输层
+ */
+public class ChatPipeline {
+    private static final AsyncLogger LOG = AsyncLogger.get();
+    private static final byte[] QUIT_BYTES = "quit".getBytes(FrameCodec.UTF_8);
+    //发送者输入quit后转发给其他人的内容
+    private static final byte[] LEFT = "退出群聊".getBytes(FrameCodec.UTF_8);
+
+    private final BufferPool pool;
+    //所有传输层上的在线连接, 编号也由它分配, 不同传输层的连接编号不会重复
+    private final SessionTable<ChatConnection> connections = new SessionTable<>();
+    //挂在本pipeline上的传输层, 很少变化, 转发时不加锁遍历
+    private final List<ChatTransport> transports = new CopyOnWriteArrayList<>();
+
+    public ChatPipeline(){
+        this(BufferPool.DEFAULT);
+    }
+
+    /**
+     * @param pool 转发的帧从这里借用直接缓冲区
+     */
+    public ChatPipeline(BufferPool pool){
+        this.pool = pool;
+    }
+
+    /**
+     * 客户端的名字, 例如"客户端[52011]"
+     * @param remote
+     * @return
+     */
+    public static String nameOf(SocketAddress remote){
+        int port = remote instanceof InetSocketAddress ? ((InetSocketAddress) remote).getPort() : -1;
+        return "客户端[" + port + "]";
+    }
+
+    public BufferPool pool(){
+        return pool;
+    }
+
+    long newId(){
+        return connections.newId();
+    }
+
+    /**
+     * 传输层开始服务时调用, 之后转发的消息也会发给它的连接
+     * @param transport
+     */
+    public void attach(ChatTransport transport){
+        transports.add(transport);
+    }
+
+    public void detach(ChatTransport transport){
+        transports.remove(transport);
+    }
+
+    /**
+     * 连接建立, 加入聊天室
+     * @param connection
+     */
+    public void opened(ChatConnection connection){
+        connections.put(connection.id(), connection);
+        LOG.info(connection.name() + "已连接");
+    }
+
+    /**
+     * 连接断开, 离开聊天室; 读失败和写失败同时触发时只有第一次调用返回true
+     * @param connection
+     * @return
+     */
+    public boolean closed(ChatConnection connection){
+        if(!connections.remove(connection.id(), connection)){
+            return false;
+        }
+        LOG.info(connection.name() + "已断开连接");
+        return true;
+    }
+
+    /**
+     * 传输层解码出一个完整的帧: 记录日志并转发给其他人
+     * @param sender
+     * @param type
+     * @param payload 只在本次调用期间有效, 不改变它的position
+     * @return 发送者输入了quit时返回false, 传输层随后断开它
+     */
+    public boolean onFrame(ChatConnection sender, byte type, ByteBuffer payload){
+        if(type != FrameCodec.TEXT){
+            return true;
+        }
+        //日志直接复制字节, 不在I/O线程中解码; 每条消息一条日志, 只在DEBUG级别记录
+        LOG.debug(sender.prefix(), payload);
+        if(FrameCodec.contentEquals(payload, QUIT_BYTES)){
+            broadcast(sender, ByteBuffer.wrap(LEFT));
+            return false;
+        }
+        broadcast(sender, payload);
+        return true;
+    }
+
+    /**
+     * 以sender的名字转发一条消息给所有传输层上的其他连接
+     * payload保持原始字节, 与发送者的前缀拼成一个池化的帧, 整条消息只构造一次, 所有接收者共用
+     * @param sender
+     * @param payload
+     */
+    public void broadcast(ChatConnection sender, ByteBuffer payload){
+        PooledBuffer frame = FrameCodec.encode(pool, FrameCodec.TEXT, sender.prefix(), payload);
+        try {
+            for(ChatTransport transport : transports){
+                transport.broadcast(sender, frame);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * 按编号查找在线连接, 可以在任意线程调用
+     * @param id
+     * @return 不在线时返回null
+     */
+    public ChatConnection connection(long id){
+        return connections.get(id);
+    }
+
+    /**
+     * @return 所有传输层上的在线连接数
+     */
+    public int connectionCount(){
+        return connections.size();
+    }
+}
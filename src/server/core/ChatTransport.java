@@ -0,0 +1,42 @@
+package server.core;
+
+import common.buffer.PooledBuffer;
+
+import java.io.IOException;
+
+/**
+ * 传输层SPI: bio/nio/aio各自实现, 只负责接受连接、读写字节和把帧放入连接的待发送队列
+ * 命名、日志、quit检测和转发都由ChatPipeline统一处理, 三种I/O模型的行为因此完全一致
+ */
+public interface ChatTransport {
+
+    /**
+     * @return 传输方式的名字, 例如bio、nio、aio
+     */
+    String name();
+
+    /**
+     * 绑定端口并开始服务, 每个连接解码出的帧交给pipeline处理; 阻塞直到stop()被调用
+     * @param pipeline 可以与其他传输层共用, 不同I/O模型的客户端就在同一个聊天室中
+     * @throws IOException 端口绑定失败等
+     */
+    void serve(ChatPipeline pipeline) throws IOException;
+
+    /**
+     * 停止服务并断开本传输层上的所有连接, 可以在任意线程调用
+     */
+    void stop();
+
+    /**
+     * 把同一个帧交给本传输层上除sender外的所有连接, 不阻塞
+     * 调用返回后pipeline会release()自己的引用, 需要在返回后继续使用frame时先retain()
+     * @param sender 可能属于其他传输层
+     * @param frame
+     */
+    void broadcast(ChatConnection sender, PooledBuffer frame);
+
+    /**
+     * @return 本传输层上的在线连接数
+     */
+    int connectionCount();
+}
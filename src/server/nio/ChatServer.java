@@ -1,41 +1,146 @@
 package server.nio;
 
+import common.buffer.BufferPool;
+import common.buffer.OutboundQueue;
+import common.buffer.PooledBuffer;
+import common.codec.FrameCodec;
+import common.log.AsyncLogger;
+import common.session.SessionTable;
+import common.transfer.SharedFile;
+import server.core.ChatConnection;
+import server.core.ChatPipeline;
+import server.core.ChatTransport;
+
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.nio.charset.Charset;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ChatServer {
+/**
+ * nio传输层: boss线程accept, 连接轮询分配给worker EventLoop, 聊天逻辑由ChatPipeline处理
+ */
+public class ChatServer implements ChatTransport {
     private static final int DEFAULT_PORT = 8888;
-    private static final String QUIT = "quit";
-    private static final int BUFFER = 1024;
+    private static final AsyncLogger LOG = AsyncLogger.get();
+    //worker EventLoop默认数量: 与CPU核数一致
+    private static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+    //每个连接待发送队列的默认上限, 超过后断开该慢速客户端
+    private static final long DEFAULT_MAX_OUTBOUND_BYTES = 1024 * 1024;
+    //允许分享的最大文件
+    private static final long DEFAULT_MAX_FILE_BYTES = 1024L * 1024 * 1024;
+    //所有暂存文件合计的默认上限
+    private static final long DEFAULT_MAX_SPOOL_BYTES = 4 * DEFAULT_MAX_FILE_BYTES;
+    //accept失败(通常是文件描述符用完)后boss线程等待的时间
+    private static final long ACCEPT_RETRY_MILLIS = 100;
 
     private ServerSocketChannel server;
     private Selector selector;
-    //通过一个线程selector监听不同的channel;
-
-    private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
-    //读入信息的缓冲区
-
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER);
-    //转发给其他客户端的缓冲区
+    //boss线程的selector只监听ACCEPT事件, 读写事件交给各个worker EventLoop
 
-    private Charset charset = Charset.forName("UTF-8");
-    //设定编码方式
+    private volatile EventLoop[] workers;
+    //所有worker共用的直接缓冲区池
+    private final BufferPool pool = BufferPool.DEFAULT;
+    //下一个分配连接的worker下标, 只在boss线程中使用
+    private int next;
+    //所有worker上的在线连接, 以pipeline分配的编号为键;
+    //广播仍然遍历各worker自己的成员数组, 这里用于按编号查找和统计
+    private final SessionTable<Session> sessions = new SessionTable<>();
+    //serve()时传入, 命名、日志、quit检测和转发都交给它
+    private volatile ChatPipeline pipeline;
 
     private int port;
+    private int workerCount;
+    //stop()置为false后boss线程退出select循环
+    private volatile boolean running = true;
+    private long maxOutboundBytes;
+    private int maxBatchMessages;
+    private int maxBatchBytes;
+    //上传的文件先暂存在这里, 所有接收者发送完后删除; 取自系统属性chatroom.nio.spoolDir与chatroom.nio.maxFileBytes
+    private File spoolDir = new File(System.getProperty("chatroom.nio.spoolDir",
+            new File(System.getProperty("java.io.tmpdir"), "chatroom-spool").getPath()));
+    private long maxFileBytes = Long.getLong("chatroom.nio.maxFileBytes", DEFAULT_MAX_FILE_BYTES);
+    //同时进行的上传和尚未发送完的暂存文件合计占用的字节上限, 取自系统属性chatroom.nio.maxSpoolBytes
+    //FILE_BEGIN时按声明的大小预留, 暂存文件删除时归还; 预留不到的上传会被拒绝
+    private long maxSpoolBytes = Long.getLong("chatroom.nio.maxSpoolBytes", DEFAULT_MAX_SPOOL_BYTES);
+    private final AtomicLong spoolBytes = new AtomicLong();
+    //写暂存文件的线程, 阻塞的FileChannel.write不在EventLoop线程中执行
+    private volatile ExecutorService spooler;
+    //每个连接的socket发送缓冲区(SO_SNDBUF), 取自系统属性chatroom.nio.sendBuffer, 0表示由内核自动调整
+    //已经进入内核发送缓冲区的文件数据排在之后的聊天消息前面, 调小它可以降低文件传输期间的聊天延迟, 代价是高延迟链路上的吞吐量
+    private int sendBuffer = Integer.getInteger("chatroom.nio.sendBuffer", 0);
 
     public ChatServer(){
         this(DEFAULT_PORT);
     }
 
     public ChatServer(int port){
+        this(port, DEFAULT_WORKERS);
+    }
+
+    public ChatServer(int port, int workerCount){
+        this(port, workerCount, DEFAULT_MAX_OUTBOUND_BYTES);
+    }
+
+    public ChatServer(int port, int workerCount, long maxOutboundBytes){
+        this(port, workerCount, maxOutboundBytes,
+                OutboundQueue.DEFAULT_MAX_BATCH_MESSAGES, OutboundQueue.DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    /**
+     * @param port
+     * @param workerCount worker EventLoop数量
+     * @param maxOutboundBytes 每个连接待发送队列的字节上限
+     * @param maxBatchMessages 一次gathering write最多聚合的消息数
+     * @param maxBatchBytes 一次gathering write最多聚合的字节数
+     */
+    public ChatServer(int port, int workerCount, long maxOutboundBytes, int maxBatchMessages, int maxBatchBytes){
+        if(workerCount < 1){
+            throw new IllegalArgumentException("workerCount must be positive: " + workerCount);
+        }
+        if(maxOutboundBytes <= 0){
+            throw new IllegalArgumentException("maxOutboundBytes must be positive: " + maxOutboundBytes);
+        }
         this.port = port;
+        this.workerCount = workerCount;
+        if(maxBatchMessages < 1 || maxBatchBytes < 1){
+            throw new IllegalArgumentException("batch limits must be positive: " + maxBatchMessages + ", " + maxBatchBytes);
+        }
+        this.maxOutboundBytes = maxOutboundBytes;
+        this.maxBatchMessages = maxBatchMessages;
+        this.maxBatchBytes = maxBatchBytes;
     }
 
-    private void start() {
+    /**
+     * 使用独立的pipeline启动服务器, 调用线程成为boss线程并一直阻塞到stop()被调用
+     */
+    public void start() {
+        try {
+            serve(new ChatPipeline());
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String name(){
+        return "nio";
+    }
+
+    /**
+     * 调用线程成为boss线程并一直阻塞到stop()被调用
+     * @param pipeline
+     * @throws IOException
+     */
+    @Override
+    public void serve(ChatPipeline pipeline) throws IOException {
+        this.pipeline = pipeline;
+        pipeline.attach(this);
         try{
             //初始化为阻塞式的
             server = ServerSocketChannel.open();
@@ -43,12 +148,29 @@ public class ChatServer {
             server.configureBlocking(false);
             server.socket().bind(new InetSocketAddress(port));
 
+            spooler = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "nio-spool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            //启动worker EventLoop, 每个EventLoop一个线程和一个selector
+            //全部启动后再发布, 其他传输层转发时不会看到未初始化的worker
+            EventLoop[] loops = new EventLoop[workerCount];
+            for(int i = 0; i < workerCount; i++){
+                loops[i] = new EventLoop(this, maxOutboundBytes, maxBatchMessages, maxBatchBytes);
+                loops[i].start("nio-worker-" + i);
+            }
+            workers = loops;
+
             selector = Selector.open();
             server.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("启动服务器, 正在监听端口" + port);
+            LOG.info("启动服务器, 正在监听端口" + port + ", worker数量" + workerCount);
 
             //假如无任何监听数据触发, selector阻塞, 所以需要while持续监听;
-            while (true){
+            while (running){
                 selector.select();
                 //获得监听到的事件(一个通道或多个通道); 相关事件已经被Selector捕获的SelectionKey集合
                 Set<SelectionKey> selectionKeys = selector.selectedKeys();
@@ -58,100 +180,309 @@ public class ChatServer {
                 selectionKeys.clear();
             }
 
-        } catch (IOException e){
-            e.printStackTrace();
+        } catch (ClosedSelectorException e){
+            //stop()与启动过程并发时selector可能已被关闭
         } finally {
+            pipeline.detach(this);
             /**
              * 每次迭代末尾的close()调用，Selector不会自己从已选择的SelectionKey集合中
              * 移除SelectionKey实例的，必须在处理完通道时自己移除
              */
              close(selector);
+             close(server);
+             if(workers != null){
+                 for(EventLoop worker : workers){
+                     if(worker != null){
+                         worker.close();
+                     }
+                 }
+             }
+             //已提交的写入仍会执行完, 结果交给已经退出的EventLoop时被忽略
+             if(spooler != null){
+                 spooler.shutdown();
+             }
+        }
+    }
+
+    private static void pause(long millis){
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    private void handles(SelectionKey key) throws IOException{
-        //ACCEPT事件 -- 和客户端简历了连接
+    /**
+     * 停止服务器: boss线程退出accept循环并关闭监听端口, 各worker断开自己的连接后退出
+     * 可以在任意线程调用, 不等待线程结束
+     */
+    @Override
+    public void stop(){
+        running = false;
+        Selector boss = selector;
+        if(boss != null){
+            boss.wakeup();
+        }
+    }
+
+    /**
+     * 单个连接的失败(文件描述符用完导致accept失败, 对方在配置前已经重置连接等)只影响这个连接, boss线程继续accept
+     * @param key
+     */
+    private void handles(SelectionKey key){
+        //ACCEPT事件 -- 和客户端建立了连接
         if(key.isAcceptable()){
             ServerSocketChannel server = (ServerSocketChannel) key.channel();
             // 服务器会为每个新的客户端连接创建一个 SocketChannel
-            SocketChannel client = server.accept();
-            // 配置为 非阻塞模式
-            client.configureBlocking(false);
-            // 这个新连接主要用于从客户端读取数据
-            client.register(selector, SelectionKey.OP_READ);
-            System.out.println(getClientName(client) + "已连接");
-        }
-        //READ事件 -- 客户端发送了消息
-        else if (key.isReadable()){
-            SocketChannel client = (SocketChannel) key.channel();
-            String fwdMsg = receive(client);
-            /**
-             * selector在TCP已经断开连接的时候, 依然能够select()出OP_READ状态SocketChannel的SelectedKey
-             * 所以需要通过得到的buffer返回值来判断, 即读取的字节数; 假如为0说明无数据可读, -1表示已断开;
-             *
-             * 此处通过获得的实际信息长度做判断, 假如异常则调用key.cancel(), 则将key放入CancelledKeys中
-             * 下一次selector.select时unregister -> 此处用wakeup()函数立即强制刷新释放监听
-             */
-            if(fwdMsg.isEmpty()){
-                //客户端异常
-                key.cancel();
-                selector.wakeup();
-            } else {
-                //服务器显示客户端发送的消息
-                System.out.println(getClientName(client) + fwdMsg);
-                //quit退出
-                if(readyToQuit(fwdMsg)){
-                    key.cancel();
-                    selector.wakeup();
-                    System.out.println(getClientName(client) + "已断开");
-                }
-                //if quit, 编辑fwd信息
-                if(QUIT.equals(fwdMsg)){
-                    fwdMsg = client.socket().getPort() + "退出群聊";
+            SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                //连接仍在accept队列中, 监听通道会一直就绪; 稍等再试, 避免boss线程空转
+                LOG.warn("accept失败: " + e);
+                pause(ACCEPT_RETRY_MILLIS);
+                return;
+            }
+            if(client == null){
+                return;
+            }
+            try {
+                // 配置为 非阻塞模式
+                client.configureBlocking(false);
+                //与aio一致关闭Nagle算法, 小消息不会被攒到对方的延迟ACK之后才发出
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if(sendBuffer > 0){
+                    client.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
                 }
-                //转发消息给其他客户端
-                forwardMessage(client, fwdMsg);
+            } catch (IOException e) {
+                LOG.warn("设置新连接失败: " + e);
+                close(client);
+                return;
+            }
+            // 轮询分配给一个worker, 之后该连接的读写都由这个worker负责
+            workers[next].register(client);
+            next = (next + 1) % workers.length;
+        }
+    }
+
+    /**
+     * 把pipeline编码好的帧交给所有worker, 由各worker在自己的线程中放入其他客户端的待发送队列
+     * 每个接收者拿到的是该帧的只读duplicate(); 每个worker持有一个引用, 所有接收者都写完后自动归还
+     * @param sender
+     * @param frame
+     */
+    @Override
+    public void broadcast(ChatConnection sender, PooledBuffer frame) {
+        EventLoop[] loops = workers;
+        if(loops == null){
+            return;
+        }
+        frame.retain(loops.length);
+        for(EventLoop worker : loops){
+            worker.broadcast(sender, frame);
+        }
+    }
+
+    /**
+     * EventLoop线程调用: sender上传的文件已经收齐, 通知所有人并把文件发给nio上的其他客户端
+     * 通知经过pipeline, 其他传输层的客户端也能看到; 文件内容只有nio客户端能接收
+     * 每个worker持有一个引用, 每个接收者的FileRegion再各持有一个, 全部发送完后暂存文件被删除
+     * @param sender
+     * @param file 调用方持有的引用在这里释放
+     */
+    void share(Session sender, SharedFile file){
+        try {
+            LOG.info(sender.name() + "分享文件" + file.name() + ", " + file.size() + "字节");
+            String notice = "分享文件 " + file.name() + " (" + file.size() + "字节)";
+            pipeline.broadcast(sender, ByteBuffer.wrap(notice.getBytes(FrameCodec.UTF_8)));
+            EventLoop[] loops = workers;
+            if(loops == null){
+                return;
             }
+            file.retain(loops.length);
+            for(EventLoop worker : loops){
+                worker.shareFile(sender, file);
+            }
+        } finally {
+            file.release();
         }
     }
 
-    private void forwardMessage(SocketChannel client, String fwdMsg) throws IOException {
-        for(SelectionKey key : selector.keys()){
-            Channel connectedClient = key.channel();
-            if(connectedClient instanceof ServerSocketChannel){
-                continue;
+    File spoolDir(){
+        return spoolDir;
+    }
+
+    long maxFileBytes(){
+        return maxFileBytes;
+    }
+
+    ExecutorService spooler(){
+        return spooler;
+    }
+
+    /**
+     * EventLoop线程调用: 为一次上传预留暂存空间
+     * @param size
+     * @return 超过chatroom.nio.maxSpoolBytes时返回false, 不预留
+     */
+    boolean reserveSpool(long size){
+        for(;;){
+            long current = spoolBytes.get();
+            if(current + size > maxSpoolBytes){
+                return false;
+            }
+            if(spoolBytes.compareAndSet(current, current + size)){
+                return true;
             }
-            if(key.isValid() && !client.equals(connectedClient)){
-                //清空可能存留的字节
-                wBuffer.clear();
-                //存入需要转发的信息
-                wBuffer.put(charset.encode(getClientName(client) + fwdMsg));
-                //write -> read; 先往wBuffer中写入数据, 再从中读取数据写入通道
-                wBuffer.flip();
-                while (wBuffer.hasRemaining()){
-                    ((SocketChannel) connectedClient).write(wBuffer);
+        }
+    }
+
+    /**
+     * 暂存文件被删除时调用, 可能在任意线程
+     * @param size
+     */
+    void releaseSpool(long size){
+        spoolBytes.addAndGet(-size);
+    }
+
+    /**
+     * 暂存文件当前预留的字节总数
+     * @return
+     */
+    public long spoolBytes(){
+        return spoolBytes.get();
+    }
+
+    /**
+     * EventLoop线程调用: 连接加入/离开聊天室
+     */
+    void sessionOpened(Session session){
+        sessions.put(session.id(), session);
+        pipeline.opened(session);
+    }
+
+    void sessionClosed(Session session){
+        if(sessions.remove(session.id(), session)){
+            pipeline.closed(session);
+        }
+    }
+
+    ChatPipeline pipeline(){
+        return pipeline;
+    }
+
+    /**
+     * 按编号查找在线连接, 可以在任意线程调用; 返回的Session只能交给它所属的EventLoop操作
+     * @param id
+     * @return 不在线时返回null
+     */
+    Session session(long id){
+        return sessions.get(id);
+    }
+
+    BufferPool pool(){
+        return pool;
+    }
+
+    /**
+     * 所有连接待发送队列中尚未写出的字节总数
+     * @return
+     */
+    public long outboundBytes(){
+        long total = 0;
+        EventLoop[] loops = workers;
+        if(loops != null){
+            for(EventLoop worker : loops){
+                if(worker != null){
+                    total += worker.outboundBytes();
                 }
             }
         }
+        return total;
+    }
+
+    /**
+     * 因待发送队列溢出而被断开的慢速客户端数量
+     * @return
+     */
+    public long slowClientsClosed(){
+        long total = 0;
+        EventLoop[] loops = workers;
+        if(loops != null){
+            for(EventLoop worker : loops){
+                if(worker != null){
+                    total += worker.slowClientsClosed();
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 聊天室当前的在线人数
+     * @return
+     */
+    public int memberCount(){
+        return sessions.size();
     }
 
-    private String receive(SocketChannel client) throws IOException {
-        rBuffer.clear();
-        while (client.read(rBuffer) > 0){ client.read(rBuffer);};
-        //read -> write;
-        rBuffer.flip();
-        return String.valueOf(charset.decode(rBuffer));
+    @Override
+    public int connectionCount(){
+        return sessions.size();
     }
 
-    private String getClientName(SocketChannel client){
-        return "客户端[" + client.socket().getPort() + "]: ";
+    /**
+     * 转发进入待发送队列的消息总数
+     * @return
+     */
+    public long messagesQueued(){
+        long total = 0;
+        EventLoop[] loops = workers;
+        if(loops != null){
+            for(EventLoop worker : loops){
+                if(worker != null){
+                    total += worker.messagesQueued();
+                }
+            }
+        }
+        return total;
     }
 
-    private boolean readyToQuit(String msg){
-        return QUIT.equals(msg);
+    /**
+     * 实际调用write(gathering write)的次数; 与messagesQueued()之比即每条消息的系统调用数
+     * @return
+     */
+    public long writeCalls(){
+        long total = 0;
+        EventLoop[] loops = workers;
+        if(loops != null){
+            for(EventLoop worker : loops){
+                if(worker != null){
+                    total += worker.writeCalls();
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 文件等大块数据(bulk)写出的字节数
+     * @return
+     */
+    public long bulkBytes(){
+        long total = 0;
+        EventLoop[] loops = workers;
+        if(loops != null){
+            for(EventLoop worker : loops){
+                if(worker != null){
+                    total += worker.bulkBytes();
+                }
+            }
+        }
+        return total;
     }
 
-    private void close(Closeable closeable){
+    void close(Closeable closeable){
         if(closeable != null){
             try {
                 closeable.close();
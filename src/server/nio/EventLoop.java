@@ -0,0 +1,657 @@
+package server.nio;
+
+import common.buffer.OutboundQueue;
+import common.buffer.PooledBuffer;
+import common.codec.FrameCodec;
+import common.log.AsyncLogger;
+import common.transfer.FileRegion;
+import common.transfer.SharedFile;
+import server.core.ChatConnection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * worker事件循环: 每个EventLoop独占一个线程和一个Selector, 以及各自的读写缓冲区
+ * boss线程accept到的SocketChannel通过register()交给某一个EventLoop, 之后该连接的所有读写都只在这个线程上进行
+ * 发送分两步: 聊天消息(interactive)每轮全部写出; 文件等大块数据(bulk)按deficit round robin在连接之间轮转,
+ * 每个连接每轮获得BULK_QUANTUM字节的额度, 每轮合计不超过MAX_BULK_BYTES_PER_ROUND, 用不完的连接留到下一轮继续,
+ * 这样大文件传输期间事件循环仍然每轮都会回到select()处理读事件和聊天消息
+ */
+class EventLoop implements Runnable {
+    private static final int BUFFER = 8192;
+    //每次读事件最多读取的次数, 防止一个连接持续发送时饿死同一EventLoop上的其他连接
+    private static final int MAX_READS_PER_EVENT = 16;
+    //deficit round robin中每个连接每轮增加的bulk发送额度, 与一个FILE_CHUNK帧大小相同
+    private static final long BULK_QUANTUM = FrameCodec.FILE_CHUNK_SIZE;
+    //每轮事件循环最多写出的bulk字节数, 超过后先回到select()
+    private static final long MAX_BULK_BYTES_PER_ROUND = 8 * BULK_QUANTUM;
+    //事件循环中不能使用会阻塞的System.out
+    private static final AsyncLogger LOG = AsyncLogger.get();
+
+    private final ChatServer server;
+    private final Selector selector;
+    //每个连接待发送队列的字节上限
+    private final long maxOutboundBytes;
+    //一次gathering write最多聚合的消息数与字节数
+    private final int maxBatchMessages;
+    private final int maxBatchBytes;
+    private Thread thread;
+    //close()置为true后事件循环在本轮结束时退出
+    private volatile boolean closing;
+
+    //本EventLoop上仍在聊天室中的连接, 紧凑排列, 广播时只遍历这里而不是selector.keys()
+    private Session[] members = new Session[16];
+    private int memberCount;
+
+    //本轮事件循环中有新数据入队的连接, 在本轮末尾统一做一次gathering write
+    private final List<Session> pendingFlush = new ArrayList<>();
+    //有bulk数据、socket可写的连接, 按deficit round robin轮流发送; 不为空时select()不阻塞
+    private final ArrayDeque<Session> bulkReady = new ArrayDeque<>();
+
+    //跨线程提交的任务(注册新连接, 其他EventLoop发来的广播), 只在本线程中执行
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private PooledBuffer readBuffer;
+    private ByteBuffer rBuffer;
+    //读入信息的缓冲区, 从池中借用的直接缓冲区, 事件循环退出时归还
+
+    //本EventLoop上所有连接排队中的字节数之和, 供其他线程观察
+    private volatile long outboundBytes;
+    //因待发送队列溢出而被断开的慢速客户端数量
+    private volatile long slowClientsClosed;
+    //入队的消息数与实际调用write的次数, 两者之比反映了聚合的效果
+    private volatile long messagesQueued;
+    private volatile long writeCalls;
+    //写出的bulk字节数
+    private volatile long bulkBytes;
+
+    EventLoop(ChatServer server, long maxOutboundBytes, int maxBatchMessages, int maxBatchBytes) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.maxOutboundBytes = maxOutboundBytes;
+        this.maxBatchMessages = maxBatchMessages;
+        this.maxBatchBytes = maxBatchBytes;
+        this.readBuffer = server.pool().allocate(BUFFER);
+        this.rBuffer = readBuffer.buffer();
+    }
+
+    void start(String name){
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    boolean inEventLoop(){
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 提交任务到本EventLoop的线程中执行, 并唤醒阻塞在select()上的selector
+     * @param task
+     */
+    void execute(Runnable task){
+        if(inEventLoop()){
+            task.run();
+            return;
+        }
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    /**
+     * boss线程调用: 把新连接交给本EventLoop, 注册必须在selector所在线程完成, 否则会和select()互相阻塞
+     * @param client
+     */
+    void register(final SocketChannel client){
+        execute(() -> {
+            try {
+                //每个连接带一个Session: 独立的解码器和待发送队列
+                SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+                Session session = new Session(server.pipeline(), this, key, client.getRemoteAddress(),
+                        new OutboundQueue(maxOutboundBytes, maxBatchMessages, maxBatchBytes));
+                key.attach(session);
+                addMember(session);
+            } catch (IOException e) {
+                e.printStackTrace();
+                server.close(client);
+            }
+        });
+    }
+
+    /**
+     * 把同一份已编码的消息转发给本EventLoop上除发送者外的所有客户端
+     * frame由调用方只编码一次, 每个连接使用各自的只读duplicate()入队, 互不影响position
+     * 写不完的部分留在连接的待发送队列中, 等OP_WRITE再发送, 事件循环不会因为某个慢速客户端而阻塞
+     * 调用方需要为本EventLoop预先retain()一次, 处理完后在这里release()
+     * @param sender
+     * @param frame
+     */
+    void broadcast(final ChatConnection sender, final PooledBuffer frame){
+        execute(() -> {
+            try {
+                //倒序遍历: enqueue中断开慢速客户端时会把末尾的成员换到当前位置, 倒序可以保证不漏掉也不重复
+                for(int i = memberCount - 1; i >= 0; i--){
+                    Session member = members[i];
+                    if(member != sender){
+                        enqueue(member, frame);
+                    }
+                }
+            } finally {
+                frame.release();
+            }
+        });
+    }
+
+    /**
+     * 把上传完成的文件发给本EventLoop上除发送者外的所有客户端: 先入队FILE_BEGIN帧, 再入队一个FileRegion,
+     * 文件内容在可写时由FileRegion分块transferTo到socket, 不占用待发送队列的字节上限
+     * 调用方需要为本EventLoop预先retain()一次, 每个接收者的FileRegion再各自retain()
+     * @param sender
+     * @param file
+     */
+    void shareFile(final ChatConnection sender, final SharedFile file){
+        execute(() -> {
+            PooledBuffer begin = FrameCodec.fileBegin(server.pool(), file.size(), file.name());
+            try {
+                for(int i = memberCount - 1; i >= 0; i--){
+                    Session member = members[i];
+                    if(member == sender){
+                        continue;
+                    }
+                    //FILE_BEGIN和文件内容都放入bulk, 保持先后顺序, 不会插在聊天消息前面
+                    enqueue(member, begin, true);
+                    //enqueue可能因队列溢出断开了该成员
+                    if(member.index >= 0 && file.size() > 0){
+                        member.outbound.offer(new FileRegion(file.retain()));
+                    }
+                    if(member.index >= 0){
+                        scheduleBulk(member);
+                    }
+                }
+            } finally {
+                begin.release();
+                file.release();
+            }
+        });
+    }
+
+    /**
+     * 其他线程发给单个连接的帧, 在本EventLoop线程中入队
+     * @param session
+     * @param frame
+     */
+    void send(final Session session, final PooledBuffer frame){
+        frame.retain();
+        execute(() -> {
+            try {
+                if(session.index >= 0){
+                    enqueue(session, frame);
+                }
+            } finally {
+                frame.release();
+            }
+        });
+    }
+
+    /**
+     * 其他线程要求断开某个连接
+     * @param session
+     */
+    void close(final Session session){
+        execute(() -> {
+            if(session.key.isValid()){
+                closeKey(session.key);
+            }
+        });
+    }
+
+    private void enqueue(Session session, PooledBuffer frame){
+        enqueue(session, frame, false);
+    }
+
+    private void enqueue(Session session, PooledBuffer frame, boolean bulk){
+        SelectionKey key = session.key;
+        OutboundQueue queue = session.outbound;
+        ByteBuffer buffer = frame.buffer().asReadOnlyBuffer();
+        //每个待发送队列持有一个引用, 写完后由队列release()
+        frame.retain();
+        if(!(bulk ? queue.offerBulk(buffer, frame) : queue.offer(buffer, frame))){
+            frame.release();
+            //待发送队列已满: 对方读得太慢, 断开它以限制内存占用
+            slowClientsClosed++;
+            LOG.warn(session.name() + "发送队列溢出, 断开连接 " + queue);
+            closeKey(key);
+            return;
+        }
+        outboundBytes += buffer.remaining();
+        messagesQueued++;
+        if(!bulk){
+            scheduleFlush(session);
+        }
+    }
+
+    /**
+     * 不立即写: 同一轮事件循环中发给该连接的所有消息在本轮末尾用一次gathering write发出
+     * 已经关注OP_WRITE的连接等可写事件即可
+     * @param session
+     */
+    private void scheduleFlush(Session session){
+        if(!session.flushScheduled && (session.key.interestOps() & SelectionKey.OP_WRITE) == 0){
+            session.flushScheduled = true;
+            pendingFlush.add(session);
+        }
+    }
+
+    /**
+     * 把有bulk数据的连接加入轮转队列; 正在等待OP_WRITE的连接在可写时由flush()加入
+     * @param session
+     */
+    private void scheduleBulk(Session session){
+        if(!session.bulkScheduled && (session.key.interestOps() & SelectionKey.OP_WRITE) == 0){
+            session.bulkScheduled = true;
+            bulkReady.add(session);
+        }
+    }
+
+    /**
+     * 本轮事件循环末尾, 对所有有新数据的连接各做一次gathering write
+     */
+    private void flushPending(){
+        for(int i = 0; i < pendingFlush.size(); i++){
+            Session session = pendingFlush.get(i);
+            session.flushScheduled = false;
+            if(session.key.isValid()){
+                flush(session.key);
+            }
+        }
+        pendingFlush.clear();
+    }
+
+    /**
+     * 写出interactive中的聊天消息(bulk中写了一半的帧会先被写完); 写不完则关注OP_WRITE, 写完则取消关注, 避免selector空转
+     * 还有bulk数据时加入轮转队列, 由runBulk()按额度发送
+     * @param key
+     */
+    private void flush(SelectionKey key){
+        Session session = (Session) key.attachment();
+        OutboundQueue queue = session.outbound;
+        long before = queue.queuedBytes();
+        try {
+            writeCalls++;
+            queue.flushInteractive(session.channel);
+        } catch (IOException e) {
+            //写失败说明对方已断开
+            closeKey(key);
+            return;
+        }
+        outboundBytes -= before - queue.queuedBytes();
+        if(queue.hasInteractive()){
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if(queue.hasBulk()){
+            scheduleBulk(session);
+        }
+    }
+
+    /**
+     * deficit round robin: 轮转队列中的每个连接依次获得BULK_QUANTUM字节的额度并发送bulk数据,
+     * 本轮合计超过MAX_BULK_BYTES_PER_ROUND后停止, 剩下的连接下一轮从这里继续
+     * 额度没用完就写不进去的连接改为等待OP_WRITE并清零额度; bulk发完的连接离开队列并清零额度
+     */
+    private void runBulk(){
+        long budget = MAX_BULK_BYTES_PER_ROUND;
+        for(int turns = bulkReady.size(); turns > 0 && budget > 0; turns--){
+            Session session = bulkReady.poll();
+            session.bulkScheduled = false;
+            SelectionKey key = session.key;
+            OutboundQueue queue = session.outbound;
+            //有聊天消息没写完说明socket已满, 已经在等待OP_WRITE
+            if(!key.isValid() || queue.hasInteractive() || !queue.hasBulk()){
+                session.deficit = 0;
+                continue;
+            }
+            session.deficit += BULK_QUANTUM;
+            long before = queue.queuedBytes();
+            long written;
+            try {
+                writeCalls++;
+                written = queue.flushBulk(session.channel, session.deficit);
+            } catch (IOException e) {
+                closeKey(key);
+                continue;
+            }
+            outboundBytes -= before - queue.queuedBytes();
+            bulkBytes += written;
+            budget -= written;
+            if(!queue.hasBulk()){
+                session.deficit = 0;
+            } else if(written < session.deficit){
+                session.deficit = 0;
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else {
+                //最后一帧可能超出额度, 超出的部分从下一轮扣除
+                session.deficit -= written;
+                session.bulkScheduled = true;
+                bulkReady.add(session);
+            }
+        }
+    }
+
+    private void addMember(Session session){
+        if(memberCount == members.length){
+            Session[] bigger = new Session[members.length << 1];
+            System.arraycopy(members, 0, bigger, 0, memberCount);
+            members = bigger;
+        }
+        session.index = memberCount;
+        members[memberCount++] = session;
+        server.sessionOpened(session);
+    }
+
+    /**
+     * 把末尾的成员移到被删除的位置, 保持数组紧凑
+     * @param session
+     */
+    private void removeMember(Session session){
+        int index = session.index;
+        if(index < 0){
+            return;
+        }
+        Session last = members[--memberCount];
+        members[index] = last;
+        last.index = index;
+        members[memberCount] = null;
+        session.index = -1;
+        server.sessionClosed(session);
+    }
+
+    private void closeKey(SelectionKey key){
+        Session session = (Session) key.attachment();
+        if(session != null){
+            removeMember(session);
+            outboundBytes -= session.outbound.queuedBytes();
+            session.outbound.clear();
+            session.decoder.reset();
+            if(session.upload != null){
+                session.upload.abort();
+                session.upload = null;
+            }
+        }
+        key.cancel();
+        server.close(key.channel());
+    }
+
+    long outboundBytes(){
+        return outboundBytes;
+    }
+
+    long slowClientsClosed(){
+        return slowClientsClosed;
+    }
+
+    long messagesQueued(){
+        return messagesQueued;
+    }
+
+    long writeCalls(){
+        return writeCalls;
+    }
+
+    long bulkBytes(){
+        return bulkBytes;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closing && !Thread.currentThread().isInterrupted() && selector.isOpen()){
+                //还有bulk数据等待轮转时不阻塞, 只收集已经就绪的事件
+                if(bulkReady.isEmpty()){
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                runTasks();
+                //其他EventLoop转发来的消息也在本轮末尾统一写出
+                Set<SelectionKey> selectionKeys = selector.selectedKeys();
+                for(SelectionKey key : selectionKeys){
+                    try {
+                        handles(key);
+                    } catch (IOException e){
+                        //单个连接的异常不应该终止整个事件循环
+                        closeKey(key);
+                    }
+                }
+                selectionKeys.clear();
+                flushPending();
+                runBulk();
+            }
+        } catch (IOException e){
+            e.printStackTrace();
+        } catch (ClosedSelectorException e){
+            //服务器关闭了selector, 退出循环即可
+        } finally {
+            //关闭selector不会关闭注册在上面的通道, 先处理完已提交的任务, 再逐个断开仍在聊天室中的连接
+            runTasks();
+            while (memberCount > 0){
+                closeKey(members[memberCount - 1].key);
+            }
+            server.close(selector);
+            readBuffer.release();
+        }
+    }
+
+    private void runTasks(){
+        Runnable task;
+        while ((task = tasks.poll()) != null){
+            task.run();
+        }
+    }
+
+    private void handles(SelectionKey key) throws IOException {
+        //WRITE事件 -- 之前写不完的数据现在可以继续发送
+        if(key.isValid() && key.isWritable()){
+            flush(key);
+        }
+        //READ事件 -- 客户端发送了消息
+        if(key.isValid() && key.isReadable()){
+            receive((Session) key.attachment());
+        }
+    }
+
+    /**
+     * 读取客户端数据并交给该连接的解码器; 一次read可能包含半个帧或多个帧, 由解码器负责切分
+     * @param session
+     * @throws IOException
+     */
+    private void receive(Session session) throws IOException {
+        //有文件块在等待写盘时暂停读取, 本次已经读到的数据仍然交给解码器
+        for(int i = 0; i < MAX_READS_PER_EVENT && session.key.isValid() && session.spooling == 0; i++){
+            rBuffer.clear();
+            int n = session.channel.read(rBuffer);
+            if(n < 0){
+                //客户端异常断开
+                closeKey(session.key);
+                return;
+            }
+            if(n == 0){
+                return;
+            }
+            //read -> write;
+            rBuffer.flip();
+            session.decoder.decode(rBuffer, session);
+        }
+    }
+
+    /**
+     * 解码器得到一个完整的帧
+     * @param session
+     * @param type
+     * @param payload
+     */
+    void onFrame(Session session, byte type, ByteBuffer payload){
+        if(!session.key.isValid()){
+            return;
+        }
+        //文件上传只有nio传输层支持, 在这里处理, 不经过pipeline
+        if(type == FrameCodec.FILE_BEGIN || type == FrameCodec.FILE_CHUNK){
+            try {
+                onFile(session, type, payload);
+            } catch (IOException e) {
+                LOG.warn(session.name() + "上传文件失败, 断开连接: " + e.getMessage());
+                closeKey(session.key);
+            }
+            return;
+        }
+        //日志、转发和quit检测都由pipeline处理; 输入quit的连接在转发之后断开
+        if(!server.pipeline().onFrame(session, type, payload)){
+            closeKey(session.key);
+        }
+    }
+
+    /**
+     * FILE_BEGIN开始一次上传, 之后的FILE_CHUNK交给暂存线程写入暂存文件; 收齐并全部写完后交给ChatServer分享给所有人
+     * 同一连接同时只能接收一个文件, 超过大小上限或暂存空间不足的文件读完后丢弃并告知发送者
+     * @param session
+     * @param type
+     * @param payload
+     * @throws IOException 帧不符合上传的顺序或暂存文件创建失败
+     */
+    private void onFile(Session session, byte type, ByteBuffer payload) throws IOException {
+        Upload upload;
+        if(type == FrameCodec.FILE_BEGIN){
+            final long size = FrameCodec.fileSize(payload);
+            if(size < 0 || session.upload != null){
+                throw new IOException("非法的FILE_BEGIN帧");
+            }
+            String name = FrameCodec.fileName(payload);
+            if(size > server.maxFileBytes()){
+                upload = Upload.discard(name, size);
+                reply(session, "文件" + upload.name() + "超过" + server.maxFileBytes() + "字节, 无法分享");
+            } else if(!server.reserveSpool(size)){
+                upload = Upload.discard(name, size);
+                reply(session, "服务器暂存空间不足, 文件" + upload.name() + "无法分享, 请稍后再试");
+            } else {
+                try {
+                    upload = Upload.spool(server.spoolDir(), name, size, () -> server.releaseSpool(size));
+                } catch (IOException e) {
+                    server.releaseSpool(size);
+                    throw e;
+                }
+            }
+            session.upload = upload;
+        } else {
+            upload = session.upload;
+            if(upload == null){
+                throw new IOException("没有正在上传的文件");
+            }
+            long position = upload.receive(payload.remaining());
+            if(!upload.discarding() && payload.hasRemaining()){
+                spool(session, upload, payload, position);
+            }
+        }
+        if(upload.isDone()){
+            //之后的FILE_BEGIN可以开始下一次上传; 还有块没写完时由spooled()分享
+            session.upload = null;
+            if(upload.pending == 0 && !upload.discarding()){
+                server.share(session, upload.share());
+            }
+        }
+    }
+
+    /**
+     * 把一个文件块复制到池中的缓冲区(payload只在本次回调中有效)后交给暂存线程写入, 写完由spooled()在本线程中处理
+     * 有块未写完时不再读取该连接, 每个连接同时只有一次读取的数据在等待写盘
+     * @param session
+     * @param upload
+     * @param payload
+     * @param position
+     * @throws IOException 暂存线程已经停止
+     */
+    private void spool(final Session session, final Upload upload, ByteBuffer payload, final long position) throws IOException {
+        final PooledBuffer chunk = server.pool().allocate(payload.remaining());
+        chunk.buffer().put(payload.duplicate()).flip();
+        try {
+            server.spooler().execute(() -> {
+                IOException error = null;
+                try {
+                    upload.writeAt(chunk.buffer(), position);
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    chunk.release();
+                }
+                final IOException failure = error;
+                execute(() -> spooled(session, upload, failure));
+            });
+        } catch (RejectedExecutionException e) {
+            chunk.release();
+            throw new IOException("暂存线程已停止");
+        }
+        upload.pending++;
+        if(session.spooling++ == 0){
+            session.key.interestOps(session.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * 暂存线程写完一个文件块: 全部写完后恢复读取, 文件已经收齐时分享出去
+     * 连接在此期间已经断开时删除暂存文件
+     * @param session
+     * @param upload
+     * @param failure 写入失败的原因, 成功时为null
+     */
+    private void spooled(Session session, Upload upload, IOException failure){
+        upload.pending--;
+        session.spooling--;
+        if(!session.key.isValid()){
+            upload.abort();
+            return;
+        }
+        try {
+            if(failure != null){
+                throw failure;
+            }
+            if(session.spooling == 0){
+                session.key.interestOps(session.key.interestOps() | SelectionKey.OP_READ);
+            }
+            if(upload.isDone() && upload.pending == 0){
+                server.share(session, upload.share());
+            }
+        } catch (IOException e) {
+            LOG.warn(session.name() + "上传文件失败, 断开连接: " + e.getMessage());
+            closeKey(session.key);
+            upload.abort();
+        }
+    }
+
+    /**
+     * 只发给session本人的提示
+     */
+    private void reply(Session session, String text){
+        PooledBuffer frame = FrameCodec.encode(server.pool(), FrameCodec.TEXT, text);
+        try {
+            enqueue(session, frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * 通知事件循环退出, 连接和selector由本EventLoop的线程在退出时关闭
+     */
+    void close(){
+        closing = true;
+        selector.wakeup();
+    }
+}
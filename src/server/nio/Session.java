@@ -0,0 +1,66 @@
+package server.nio;
+
+import common.buffer.OutboundQueue;
+import common.buffer.PooledBuffer;
+import common.codec.FrameDecoder;
+import common.codec.FrameHandler;
+import server.core.ChatConnection;
+import server.core.ChatPipeline;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 每个客户端连接的状态, 作为attachment挂在SelectionKey上:
+ * 编号和名字(由ChatConnection在连接建立时确定)、解码器状态和待发送队列都在这里
+ * 除send()和close()外只在连接所属的EventLoop线程中访问
+ */
+class Session extends ChatConnection implements FrameHandler {
+    final SelectionKey key;
+    final SocketChannel channel;
+    //残缺帧会保留在解码器中, 等下一次读事件再拼接
+    final FrameDecoder decoder = new FrameDecoder();
+    final OutboundQueue outbound;
+    //是否已经在EventLoop本轮末尾的待写出列表中
+    boolean flushScheduled;
+    //在所属EventLoop成员数组中的下标, 不在聊天室中时为-1
+    int index = -1;
+    //正在上传的文件, 没有时为null
+    Upload upload;
+    //交给暂存线程、尚未写完的块数; 大于0时不关注OP_READ, 上传速度受磁盘写入速度限制
+    int spooling;
+    //是否在EventLoop的bulk轮转队列中, 以及deficit round robin中剩余的发送额度
+    boolean bulkScheduled;
+    long deficit;
+    private final EventLoop loop;
+
+    Session(ChatPipeline pipeline, EventLoop loop, SelectionKey key, SocketAddress remote, OutboundQueue outbound){
+        super(pipeline, remote);
+        this.loop = loop;
+        this.key = key;
+        this.channel = (SocketChannel) key.channel();
+        this.outbound = outbound;
+    }
+
+    /**
+     * 其他线程发来的帧交给所属的EventLoop入队
+     * @param frame
+     */
+    @Override
+    public void send(PooledBuffer frame) {
+        loop.send(this, frame);
+    }
+
+    @Override
+    public void close() {
+        loop.close(this);
+    }
+
+    @Override
+    public void onFrame(byte type, ByteBuffer payload) throws IOException {
+        loop.onFrame(this, type, payload);
+    }
+}
@@ -0,0 +1,173 @@
+package server.nio;
+
+import common.transfer.SharedFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 一个连接正在上传的文件: FILE_CHUNK的内容按各自的位置写入暂存文件, 收齐且全部写完后作为SharedFile发给其他人
+ * 超过大小上限的上传仍然按声明的大小读完, 只是不写盘, 保证之后的帧能正确切分
+ * 写盘由暂存线程通过writeAt()完成, 其余方法和pending只在连接所属的EventLoop线程中使用
+ */
+class Upload {
+    private final String name;
+    private final long size;
+    //为null时丢弃内容
+    private final File spool;
+    private final FileChannel out;
+    //暂存文件被删除时执行一次, 归还暂存空间的额度
+    private final Runnable onRelease;
+    private long received;
+    //已交给暂存线程、尚未写完的块数
+    int pending;
+    //已经分享或中止
+    private boolean finished;
+
+    private Upload(String name, long size, File spool, FileChannel out, Runnable onRelease){
+        this.name = name;
+        this.size = size;
+        this.spool = spool;
+        this.out = out;
+        this.onRelease = onRelease;
+    }
+
+    /**
+     * 在dir中创建暂存文件
+     * @param dir
+     * @param name 客户端给出的文件名, 只保留最后一级, 不能用来访问其他目录
+     * @param size
+     * @param onRelease 暂存文件被删除(中止, 或分享后所有接收者都发送完)时执行; 创建失败时不执行
+     * @return
+     * @throws IOException
+     */
+    static Upload spool(File dir, String name, long size, Runnable onRelease) throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            throw new IOException("无法创建暂存目录: " + dir);
+        }
+        File spool = File.createTempFile("upload-", ".spool", dir);
+        FileChannel out;
+        try {
+            out = FileChannel.open(spool.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            spool.delete();
+            throw e;
+        }
+        return new Upload(safeName(name), size, spool, out, onRelease);
+    }
+
+    /**
+     * 不写盘, 只跳过声明的字节数
+     */
+    static Upload discard(String name, long size){
+        return new Upload(safeName(name), size, null, null, null);
+    }
+
+    static String safeName(String name){
+        String base;
+        try {
+            base = String.valueOf(Paths.get(name.replace('\\', '/')).getFileName());
+        } catch (RuntimeException e) {
+            base = "";
+        }
+        return base.isEmpty() || "null".equals(base) || "..".equals(base) ? "file" : base;
+    }
+
+    /**
+     * 收到一个FILE_CHUNK: 检查大小并为它分配文件中的位置, 内容由调用方交给暂存线程写入
+     * @param length
+     * @return 这段内容在暂存文件中的起始位置
+     * @throws IOException 内容超过声明的大小
+     */
+    long receive(int length) throws IOException {
+        if(received + length > size){
+            throw new IOException("上传的内容超过声明的大小: " + name + " " + (received + length) + "/" + size);
+        }
+        long position = received;
+        received += length;
+        return position;
+    }
+
+    /**
+     * 暂存线程调用: 把一块内容写到position处; 各块位置互不重叠, 写入顺序不影响结果
+     * @param src
+     * @param position
+     * @throws IOException 写入失败, 或上传已中止、通道已关闭
+     */
+    void writeAt(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()){
+            position += out.write(src, position);
+        }
+    }
+
+    /**
+     * @return 已收到声明的全部字节; 还有块没有写完时不能分享
+     */
+    boolean isDone(){
+        return received == size;
+    }
+
+    boolean discarding(){
+        return spool == null;
+    }
+
+    String name(){
+        return name;
+    }
+
+    long size(){
+        return size;
+    }
+
+    /**
+     * 上传完成: 关闭写通道, 以只读方式打开暂存文件, 所有接收者发送完后删除
+     * @return
+     * @throws IOException
+     */
+    SharedFile share() throws IOException {
+        finished = true;
+        closeOut();
+        try {
+            return SharedFile.open(spool, name, true, onRelease);
+        } catch (IOException e) {
+            spool.delete();
+            released();
+            throw e;
+        }
+    }
+
+    /**
+     * 上传中断(连接断开或出错): 删除暂存文件; 已经分享或中止过时什么也不做
+     */
+    void abort(){
+        if(finished){
+            return;
+        }
+        finished = true;
+        closeOut();
+        if(spool != null){
+            spool.delete();
+            released();
+        }
+    }
+
+    private void released(){
+        if(onRelease != null){
+            onRelease.run();
+        }
+    }
+
+    private void closeOut(){
+        if(out != null){
+            try {
+                out.close();
+            } catch (IOException e) {
+                //忽略
+            }
+        }
+    }
+}